@@ -0,0 +1,469 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Decompresses bzip2 data, including concatenated streams as written by pbzip2.
+ * A background thread reads the compressed blocks and undoes the Huffman and
+ * move-to-front coding, which has to be done sequentially to find the block
+ * boundaries. The expensive inverse Burrows-Wheeler transform and the run-length
+ * decoding of the blocks run on a pool of worker threads. The blocks are
+ * returned in their original order.
+ */
+public class BZip2InputStream extends InputStream {
+
+	static final long BLOCK_MAGIC = 0x314159265359L;
+	static final long END_MAGIC = 0x177245385090L;
+
+	static final int MAX_GROUPS = 6;
+	static final int GROUP_SIZE = 50;
+	static final int MAX_CODE_LEN = 20;
+
+	static final int[] CRC_TABLE = new int[256];
+	static {
+		for(int i = 0; i < 256; i++) {
+			int c = i << 24;
+			for(int k = 0; k < 8; k++)
+				c = (c < 0) ? (c << 1) ^ 0x04c11db7 : (c << 1);
+			CRC_TABLE[i] = c;
+		}
+	}
+
+	// Marks the end of the data in the block queue
+	private static final Future<byte[]> END = new FutureTask<byte[]>(new Callable<byte[]>() {
+		public byte[] call() {
+			return null;
+		}
+	});
+
+	private final InputStream in;
+	private final ExecutorService pool;
+	private final BlockingQueue<Future<byte[]>> blocks;
+	private final Thread reader;
+	private volatile IOException readError = null;
+
+	private byte[] current = new byte[0];
+	private int pos = 0;
+	private boolean eof = false;
+
+	public BZip2InputStream(InputStream in, int threads)
+	{
+		this.in = new BufferedInputStream(in, 1 << 16);
+		threads = Math.max(1, threads);
+		pool = DaemonThreads.newFixedThreadPool(threads, "bzip2");
+		blocks = new ArrayBlockingQueue<>(2 * threads);
+		reader = new Thread(new Runnable() {
+			public void run() {
+				readBlocks();
+			}
+		}, "bzip2 reader");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(pos >= current.length && !nextBlock())
+			return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+			return 0;
+		if(pos >= current.length && !nextBlock())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		eof = true;
+		reader.interrupt();
+		pool.shutdownNow();
+		in.close();
+	}
+
+	/** Waits for the next decoded block. Returns false at the end of the data. */
+	private boolean nextBlock() throws IOException
+	{
+		while(!eof) {
+			Future<byte[]> f;
+			try {
+				f = blocks.take();
+				if(f == END) {
+					eof = true;
+					pool.shutdown();
+					if(readError != null)
+						throw readError;
+					return false;
+				}
+				current = f.get();
+				pos = 0;
+			}
+			catch(InterruptedException e) {
+				throw new IOException("interrupted while decompressing", e);
+			}
+			catch(ExecutionException e) {
+				if(e.getCause() instanceof IOException)
+					throw (IOException)e.getCause();
+				throw new IOException("error while decompressing", e.getCause());
+			}
+			if(current.length > 0)
+				return true;
+		}
+		return false;
+	}
+
+	// -------------------
+	// Sequential part, running on the reader thread
+
+	private long bitBuf = 0;
+	private int bitCount = 0;
+
+	private int bits(int n) throws IOException
+	{
+		while(bitCount < n) {
+			int b = in.read();
+			if(b < 0)
+				throw new IOException("unexpected end of bzip2 data");
+			bitBuf = (bitBuf << 8) | b;
+			bitCount += 8;
+		}
+		bitCount -= n;
+		return (int)(bitBuf >>> bitCount) & ((1 << n) - 1);
+	}
+
+	private long bits48() throws IOException
+	{
+		return ((long)bits(24) << 24) | bits(24);
+	}
+
+	private void readBlocks()
+	{
+		try {
+			boolean first = true;
+			while(readStreamHeader(first)) {
+				first = false;
+				int combinedCRC = 0;
+				while(true) {
+					long magic = bits48();
+					int crc = bits(16) << 16 | bits(16);
+					if(magic == END_MAGIC) {
+						if(crc != combinedCRC)
+							throw new IOException("bzip2 stream CRC error");
+						// Streams are padded to whole bytes
+						bitCount -= bitCount % 8;
+						break;
+					}
+					if(magic != BLOCK_MAGIC)
+						throw new IOException("bad bzip2 block header");
+					combinedCRC = ((combinedCRC << 1) | (combinedCRC >>> 31)) ^ crc;
+					final Block b = readBlock(crc, maxBlockSize);
+					blocks.put(pool.submit(new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							return b.decode();
+						}
+					}));
+				}
+			}
+		}
+		catch(IOException e) {
+			readError = e;
+		}
+		catch(InterruptedException e) {
+			return; // closed
+		}
+		catch(RuntimeException e) {
+			readError = new IOException("corrupt bzip2 data", e);
+		}
+		try {
+			blocks.put(END);
+		}
+		catch(InterruptedException e) {
+			// closed
+		}
+	}
+
+	private int maxBlockSize;
+
+	/** Reads the "BZh" header of the next stream. Returns false at the end of the input. */
+	private boolean readStreamHeader(boolean first) throws IOException
+	{
+		// Consume the remaining whole bytes of the bit buffer first
+		int b0;
+		if(bitCount >= 8)
+			b0 = bits(8);
+		else {
+			b0 = in.read();
+			if(b0 < 0) {
+				if(first)
+					throw new IOException("empty bzip2 file");
+				return false;
+			}
+		}
+		int b1 = bits(8), b2 = bits(8), level = bits(8);
+		if(b0 != 'B' || b1 != 'Z' || b2 != 'h' || level < '1' || level > '9')
+			throw new IOException("not a bzip2 file");
+		maxBlockSize = (level - '0') * 100000;
+		return true;
+	}
+
+	/** Reads one block up to the Burrows-Wheeler transformed data. */
+	private Block readBlock(int crc, int blockSize) throws IOException
+	{
+		if(bits(1) != 0)
+			throw new IOException("randomised bzip2 blocks are not supported");
+		int origPtr = bits(24);
+
+		// Symbol map
+		int used = bits(16);
+		byte[] seqToUnseq = new byte[256];
+		int numInUse = 0;
+		for(int i = 0; i < 16; i++) {
+			if((used & (0x8000 >>> i)) != 0) {
+				int u = bits(16);
+				for(int j = 0; j < 16; j++) {
+					if((u & (0x8000 >>> j)) != 0)
+						seqToUnseq[numInUse++] = (byte)(i * 16 + j);
+				}
+			}
+		}
+		if(numInUse == 0)
+			throw new IOException("bad bzip2 symbol map");
+		int alphaSize = numInUse + 2;
+
+		// Selectors
+		int numGroups = bits(3);
+		if(numGroups < 2 || numGroups > MAX_GROUPS)
+			throw new IOException("bad bzip2 group count");
+		int numSelectors = bits(15);
+		if(numSelectors < 1)
+			throw new IOException("bad bzip2 selector count");
+		byte[] mtfGroups = { 0, 1, 2, 3, 4, 5 };
+		byte[] selectors = new byte[numSelectors];
+		for(int i = 0; i < numSelectors; i++) {
+			int j = 0;
+			while(bits(1) != 0) {
+				if(++j >= numGroups)
+					throw new IOException("bad bzip2 selector");
+			}
+			byte v = mtfGroups[j];
+			System.arraycopy(mtfGroups, 0, mtfGroups, 1, j);
+			mtfGroups[0] = v;
+			selectors[i] = v;
+		}
+
+		// Huffman tables
+		int[][] limit = new int[numGroups][MAX_CODE_LEN + 2];
+		int[][] base = new int[numGroups][MAX_CODE_LEN + 2];
+		int[][] perm = new int[numGroups][alphaSize];
+		int[] minLens = new int[numGroups];
+		byte[] lens = new byte[alphaSize];
+		for(int t = 0; t < numGroups; t++) {
+			int len = bits(5);
+			for(int i = 0; i < alphaSize; i++) {
+				while(true) {
+					if(len < 1 || len > MAX_CODE_LEN)
+						throw new IOException("bad bzip2 code length");
+					if(bits(1) == 0)
+						break;
+					len += bits(1) == 0 ? 1 : -1;
+				}
+				lens[i] = (byte)len;
+			}
+			minLens[t] = buildTable(lens, alphaSize, limit[t], base[t], perm[t]);
+		}
+
+		// Huffman and move-to-front decoding
+		byte[] data = new byte[blockSize];
+		int n = 0;
+		byte[] mtf = new byte[256];
+		for(int i = 0; i < 256; i++)
+			mtf[i] = (byte)i;
+		int eob = numInUse + 1;
+		int groupIndex = -1, groupPos = 0;
+		int[] gLimit = null, gBase = null, gPerm = null;
+		int gMinLen = 0;
+		int run = 0, runWeight = 1;
+		while(true) {
+			if(groupPos == 0) {
+				if(++groupIndex >= numSelectors)
+					throw new IOException("bad bzip2 selector count");
+				int g = selectors[groupIndex];
+				gLimit = limit[g];
+				gBase = base[g];
+				gPerm = perm[g];
+				gMinLen = minLens[g];
+				groupPos = GROUP_SIZE;
+			}
+			groupPos--;
+
+			int zn = gMinLen;
+			int zvec = bits(zn);
+			while(zvec > gLimit[zn]) {
+				if(++zn > MAX_CODE_LEN)
+					throw new IOException("bad bzip2 Huffman code");
+				zvec = (zvec << 1) | bits(1);
+			}
+			int sym = gPerm[zvec - gBase[zn]];
+
+			if(sym <= 1) { // RUNA or RUNB
+				run += runWeight << sym;
+				runWeight <<= 1;
+				if(run > blockSize)
+					throw new IOException("bad bzip2 run length");
+				continue;
+			}
+			if(run > 0) {
+				if(n + run > blockSize)
+					throw new IOException("bzip2 block too long");
+				Arrays.fill(data, n, n + run, seqToUnseq[mtf[0] & 0xff]);
+				n += run;
+				run = 0;
+				runWeight = 1;
+			}
+			if(sym == eob)
+				break;
+			if(n >= blockSize)
+				throw new IOException("bzip2 block too long");
+			int idx = sym - 1;
+			byte v = mtf[idx];
+			System.arraycopy(mtf, 0, mtf, 1, idx);
+			mtf[0] = v;
+			data[n++] = seqToUnseq[v & 0xff];
+		}
+		if(origPtr >= n)
+			throw new IOException("bad bzip2 block origin");
+		return new Block(data, n, origPtr, crc);
+	}
+
+	/** Builds the canonical Huffman decoding table. Returns the minimum code length. */
+	private static int buildTable(byte[] lens, int alphaSize, int[] limit, int[] base, int[] perm)
+	{
+		int minLen = MAX_CODE_LEN, maxLen = 0;
+		for(int i = 0; i < alphaSize; i++) {
+			minLen = Math.min(minLen, lens[i]);
+			maxLen = Math.max(maxLen, lens[i]);
+		}
+		int pp = 0;
+		for(int len = minLen; len <= maxLen; len++) {
+			for(int s = 0; s < alphaSize; s++) {
+				if(lens[s] == len)
+					perm[pp++] = s;
+			}
+		}
+		int[] count = new int[MAX_CODE_LEN + 2];
+		for(int i = 0; i < alphaSize; i++)
+			count[lens[i]]++;
+		int code = 0, index = 0;
+		Arrays.fill(limit, -1);
+		for(int len = minLen; len <= maxLen; len++) {
+			// codes of this length are code .. code + count - 1, at perm[index ..]
+			base[len] = code - index;
+			code += count[len];
+			index += count[len];
+			limit[len] = code - 1;
+			code <<= 1;
+		}
+		return minLen;
+	}
+
+	// -------------------
+	// Parallel part, running on the worker threads
+
+	/** A block after Huffman and move-to-front decoding. */
+	private static class Block {
+		final byte[] data;
+		final int length;
+		final int origPtr;
+		final int crc;
+
+		Block(byte[] data, int length, int origPtr, int crc) {
+			this.data = data;
+			this.length = length;
+			this.origPtr = origPtr;
+			this.crc = crc;
+		}
+
+		/** Undoes the Burrows-Wheeler transform and the initial run-length coding. */
+		byte[] decode() throws IOException {
+			int[] cftab = new int[257];
+			for(int i = 0; i < length; i++)
+				cftab[(data[i] & 0xff) + 1]++;
+			for(int i = 1; i < 257; i++)
+				cftab[i] += cftab[i - 1];
+			int[] tt = new int[length];
+			for(int i = 0; i < length; i++) {
+				int c = data[i] & 0xff;
+				tt[cftab[c]++] = (i << 8) | c;
+			}
+
+			byte[] out = new byte[length + length / 4 + 16];
+			int n = 0;
+			int crc = -1;
+			int tPos = origPtr;
+			int last = -1, same = 0;
+			for(int i = 0; i < length; i++) {
+				int entry = tt[tPos];
+				int c = entry & 0xff;
+				tPos = entry >>> 8;
+				if(same == 4) {
+					// run length byte after four equal bytes
+					if(n + c > out.length)
+						out = Arrays.copyOf(out, Math.max(out.length * 2, n + c));
+					for(int k = 0; k < c; k++) {
+						out[n++] = (byte)last;
+						crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ last) & 0xff];
+					}
+					same = 0;
+					last = -1;
+					continue;
+				}
+				if(c == last)
+					same++;
+				else {
+					same = 1;
+					last = c;
+				}
+				if(n == out.length)
+					out = Arrays.copyOf(out, out.length * 2);
+				out[n++] = (byte)c;
+				crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ c) & 0xff];
+			}
+			if(~crc != this.crc)
+				throw new IOException("bzip2 block CRC error");
+			return n == out.length ? out : Arrays.copyOf(out, n);
+		}
+	}
+}
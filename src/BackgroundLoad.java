@@ -0,0 +1,114 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A resource which is loaded on its own thread, such as the tokenizer or a
+ * word list, so that several resources are loaded at once while the input
+ * is already being read. The users wait for the resource when they need it.
+ * The time the loading took is kept for the report.
+ */
+class BackgroundLoad<T> extends FutureTask<T> {
+
+	private final String name;
+	private final Timed<T> loader;
+
+	/**
+	 * Runs the loader and records its times. They are recorded before the
+	 * result is set, so the waiters of the load see them.
+	 */
+	private static class Timed<T> implements Callable<T> {
+		private final Callable<T> loader;
+		volatile long startTime = 0;
+		volatile long endTime = 0;
+		volatile boolean failed = false;
+
+		Timed(Callable<T> loader)
+		{
+			this.loader = loader;
+		}
+
+		public T call() throws Exception
+		{
+			startTime = System.nanoTime();
+			boolean ok = false;
+			try {
+				T result = loader.call();
+				ok = true;
+				return result;
+			}
+			finally {
+				failed = !ok;
+				endTime = System.nanoTime();
+			}
+		}
+	}
+
+	private BackgroundLoad(String name, Timed<T> loader)
+	{
+		super(loader);
+		this.name = name;
+		this.loader = loader;
+	}
+
+	/** Starts loading a resource on a new thread. */
+	static <T> BackgroundLoad<T> start(String name, Callable<T> loader)
+	{
+		BackgroundLoad<T> load = new BackgroundLoad<T>(name, new Timed<T>(loader));
+		Thread t = new Thread(load, "load " + name);
+		t.setDaemon(true);
+		t.start();
+		return load;
+	}
+
+	/** Waits for a resource and returns it. A failure to load it is thrown as IOException. */
+	static <T> T await(Future<T> load) throws IOException
+	{
+		try {
+			return load.get();
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Loading failed", e.getCause());
+		}
+	}
+
+	String getName() {
+		return name;
+	}
+
+	/** The time the loading took in milliseconds, or -1 if it is not done. */
+	long getMillis() {
+		long end = loader.endTime;
+		return end == 0 ? -1 : (end - loader.startTime) / 1000000;
+	}
+
+	/** The time at which the loading was done, as System.nanoTime(), or 0. */
+	long getEndTime() {
+		return loader.endTime;
+	}
+
+	/** Whether the loading is done and failed. */
+	boolean isFailed() {
+		return loader.endTime != 0 && loader.failed;
+	}
+}
@@ -0,0 +1,223 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Transliteration results stored in a file, to be reused by later runs.
+ * The file starts with a fingerprint of the program version and of the word
+ * and translation lists; if it does not match, the stored results are not
+ * used and the file is written anew. Otherwise the file is read, its names
+ * are indexed, and the results are decoded when they are looked up.
+ * New results are appended by save(). A file larger than 2 GB is an error.
+ * <p>
+ * Format: magic number, format version, fingerprint (long), then records of
+ * Japanese name, transliterated name and name after the word list
+ * translation, each as length (int) and UTF-8 bytes.
+ */
+public class CacheFile {
+
+	private static final int MAGIC = 0x4a4d5443; // "JMTC"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File file;
+	private final long fingerprint;
+
+	private ByteBuffer data = null;
+	private long validLength = 0; // length of the file up to the last complete record, 0 if written anew
+	private final Map<String, Integer> index = new HashMap<String, Integer>(); // name -> offset of the result
+	private final Map<String, TransliterationCache.Result> added = new LinkedHashMap<String, TransliterationCache.Result>();
+	private long hits = 0;
+
+	/** Opens a cache file. A missing, invalid or stale file is not an error; it is written anew. */
+	public CacheFile(File file, long fingerprint) throws IOException
+	{
+		this.file = file;
+		this.fingerprint = fingerprint;
+		if(!file.exists() || file.length() < HEADER_SIZE)
+			return;
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel ch = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			while(header.hasRemaining() && ch.read(header) > 0)
+				;
+			header.flip();
+			if(header.getInt() != MAGIC || header.getInt() != FORMAT_VERSION || header.getLong() != fingerprint)
+				return; // stale
+			if(ch.size() > Integer.MAX_VALUE)
+				throw new IOException("Cache file " + file + " is larger than 2 GB, not used; remove it or use another one");
+			// Read rather than mapped: save() appends to the file, which is
+			// not allowed for a mapped file on some systems, e.g. Windows.
+			data = ByteBuffer.allocate((int)ch.size());
+			while(data.hasRemaining() && ch.read(data, data.position()) > 0)
+				;
+			data.flip();
+		}
+		finally {
+			raf.close();
+		}
+		readIndex();
+	}
+
+	/** Computes the fingerprint of the program version and the given files, which may be null. */
+	public static long fingerprint(String version, String... files) throws IOException
+	{
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-1");
+			md.update(version.getBytes(UTF8));
+			byte[] buf = new byte[1 << 16];
+			for(String f : files) {
+				md.update((byte)0);
+				if(f == null)
+					continue;
+				FileInputStream in = new FileInputStream(f);
+				int n;
+				while((n = in.read(buf)) > 0)
+					md.update(buf, 0, n);
+				in.close();
+			}
+			return ByteBuffer.wrap(md.digest()).getLong();
+		}
+		catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+	}
+
+	private void readIndex()
+	{
+		int pos = HEADER_SIZE;
+		int size = data.limit();
+		while(true) {
+			// A record may be incomplete if a previous run was aborted while writing
+			int keyLen = pos + 4 <= size ? data.getInt(pos) : -1;
+			if(keyLen < 0 || pos + 4 + keyLen > size)
+				break;
+			int result = pos + 4 + keyLen;
+			int end = skipString(result, size);
+			end = end < 0 ? -1 : skipString(end, size);
+			if(end < 0)
+				break;
+			index.put(readString(pos), result);
+			pos = end;
+		}
+		validLength = pos;
+	}
+
+	private int skipString(int pos, int size)
+	{
+		if(pos + 4 > size)
+			return -1;
+		int len = data.getInt(pos);
+		if(len < 0 || pos + 4 + len > size)
+			return -1;
+		return pos + 4 + len;
+	}
+
+	private String readString(int pos)
+	{
+		int len = data.getInt(pos);
+		byte[] b = new byte[len];
+		for(int i = 0; i < len; i++)
+			b[i] = data.get(pos + 4 + i);
+		return new String(b, UTF8);
+	}
+
+	/** Returns the stored result for a Japanese name, or null. */
+	public synchronized TransliterationCache.Result get(String jaName)
+	{
+		Integer pos = index.get(jaName);
+		if(pos == null)
+			return added.get(jaName); // e.g. from another thread
+		hits++;
+		String trName = readString(pos);
+		String woName = readString(pos + 4 + data.getInt(pos));
+		return new TransliterationCache.Result(trName, woName);
+	}
+
+	/** Adds a new result, to be saved at the end. */
+	public synchronized void put(String jaName, TransliterationCache.Result r)
+	{
+		if(!index.containsKey(jaName))
+			added.put(jaName, r);
+	}
+
+	/** Appends the new results to the file, or writes it anew if it was missing or stale. */
+	public synchronized void save() throws IOException
+	{
+		if(validLength > 0 && added.isEmpty())
+			return;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		if(validLength == 0) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(fingerprint);
+		}
+		for(Map.Entry<String, TransliterationCache.Result> e : added.entrySet()) {
+			writeString(out, e.getKey());
+			writeString(out, e.getValue().trName);
+			writeString(out, e.getValue().woName);
+		}
+		out.flush();
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(validLength);
+			raf.write(bytes.toByteArray());
+			raf.setLength(validLength + bytes.size());
+		}
+		finally {
+			raf.close();
+		}
+		validLength += bytes.size();
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		byte[] b = s.getBytes(UTF8);
+		out.writeInt(b.length);
+		out.write(b);
+	}
+
+	public synchronized int getNumLoaded() {
+		return index.size();
+	}
+
+	public synchronized int getNumAdded() {
+		return added.size();
+	}
+
+	/** The number of lookups answered by the stored results. */
+	public synchronized long getHits() {
+		return hits;
+	}
+}
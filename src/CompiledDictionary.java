@@ -0,0 +1,202 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * The compiled form of a word list or translation list, which is stored next
+ * to the list as FILE.dict by the compile command. It holds the structures
+ * built from the list, so that they are memory-mapped instead of parsing the
+ * list. The compiled file is only used if it matches the length and the
+ * modification time of the list, and if it is complete; otherwise the list
+ * is read. The file is written under another name and then renamed, so an
+ * interrupted compile does not leave a partial file.
+ * <p>
+ * Format: magic number, format version, kind of list, length and
+ * modification time of the list (longs), default locale (UTF), length (long)
+ * and CRC-32 (int) of the body, then the body with the structures of the list.
+ */
+class CompiledDictionary {
+
+	private static final int MAGIC = 0x4a4d5444; // "JMTD"
+	private static final int FORMAT_VERSION = 2;
+	static final String SUFFIX = ".dict";
+
+	static final int WORD_LIST = 1;
+	static final int TRANSLATION_LIST = 2;
+
+	/** Returns the compiled file of a list. */
+	static File compiledFile(String file)
+	{
+		return new File(file + SUFFIX);
+	}
+
+	/**
+	 * Maps the compiled file of a list, positioned after the header.
+	 * Returns null if there is none, or if it is stale, incomplete or invalid.
+	 */
+	static ByteBuffer open(String file, int kind)
+	{
+		File source = new File(file);
+		File compiled = compiledFile(file);
+		if(!source.exists() || !compiled.exists())
+			return null;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(compiled, "r");
+			ByteBuffer data;
+			try {
+				FileChannel ch = raf.getChannel();
+				if(ch.size() > Integer.MAX_VALUE)
+					return null;
+				data = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+			}
+			finally {
+				raf.close();
+			}
+			if(data.getInt() != MAGIC || data.getInt() != FORMAT_VERSION || data.getInt() != kind
+					|| data.getLong() != source.length() || data.getLong() != source.lastModified()
+					|| !readString(data).equals(Locale.getDefault().toString()))
+				return null; // stale
+			long length = data.getLong();
+			int crc = data.getInt();
+			if(length != data.remaining() || crc != checksum(data))
+				return null; // incomplete or damaged
+			return data;
+		}
+		catch(RuntimeException | IOException e) {
+			// e.g. truncated
+			return null;
+		}
+	}
+
+	/** Starts the body of the compiled form of a list: returns a stream writing to bytes. */
+	static DataOutputStream create(ByteArrayOutputStream bytes)
+	{
+		return new DataOutputStream(bytes);
+	}
+
+	/**
+	 * Writes the compiled form of a list, with the body written to bytes, to
+	 * its file. The file is written under another name first, and renamed
+	 * when complete.
+	 */
+	static void save(String file, int kind, DataOutputStream out, ByteArrayOutputStream bytes) throws IOException
+	{
+		out.flush();
+		byte[] body = bytes.toByteArray();
+		File source = new File(file);
+		ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(headerBytes);
+		header.writeInt(MAGIC);
+		header.writeInt(FORMAT_VERSION);
+		header.writeInt(kind);
+		header.writeLong(source.length());
+		header.writeLong(source.lastModified());
+		writeString(header, Locale.getDefault().toString());
+		header.writeLong(body.length);
+		header.writeInt(checksum(ByteBuffer.wrap(body)));
+		header.flush();
+
+		File compiled = compiledFile(file).getAbsoluteFile();
+		File tmp = File.createTempFile(compiled.getName(), ".tmp", compiled.getParentFile());
+		try {
+			FileOutputStream f = new FileOutputStream(tmp);
+			try {
+				headerBytes.writeTo(f);
+				f.write(body);
+			}
+			finally {
+				f.close();
+			}
+			try {
+				Files.move(tmp.toPath(), compiled.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			}
+			catch(AtomicMoveNotSupportedException e) {
+				Files.move(tmp.toPath(), compiled.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		finally {
+			tmp.delete(); // if not renamed
+		}
+	}
+
+	/** The CRC-32 of the remaining bytes of a buffer, whose position is not changed. */
+	private static int checksum(ByteBuffer data)
+	{
+		ByteBuffer in = data.duplicate();
+		CRC32 crc = new CRC32();
+		byte[] buf = new byte[1 << 16];
+		while(in.hasRemaining()) {
+			int n = Math.min(buf.length, in.remaining());
+			in.get(buf, 0, n);
+			crc.update(buf, 0, n);
+		}
+		return (int)crc.getValue();
+	}
+
+	static void writeString(DataOutputStream out, String s) throws IOException
+	{
+		out.writeInt(s.length());
+		out.writeChars(s);
+	}
+
+	static String readString(ByteBuffer in)
+	{
+		return new String(readChars(in));
+	}
+
+	static void writeInts(DataOutputStream out, int[] a) throws IOException
+	{
+		out.writeInt(a.length);
+		for(int v : a)
+			out.writeInt(v);
+	}
+
+	static int[] readInts(ByteBuffer in)
+	{
+		int[] a = new int[in.getInt()];
+		in.asIntBuffer().get(a);
+		in.position(in.position() + 4 * a.length);
+		return a;
+	}
+
+	static void writeChars(DataOutputStream out, char[] a) throws IOException
+	{
+		out.writeInt(a.length);
+		for(char c : a)
+			out.writeChar(c);
+	}
+
+	static char[] readChars(ByteBuffer in)
+	{
+		char[] a = new char[in.getInt()];
+		in.asCharBuffer().get(a);
+		in.position(in.position() + 2 * a.length);
+		return a;
+	}
+}
@@ -0,0 +1,48 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the daemon threads of the worker pools of the streams and the
+ * pipeline. A pool which is not shut down after a failed file then does
+ * not keep the JVM from exiting.
+ */
+class DaemonThreads implements ThreadFactory {
+
+	private final String name;
+	private final AtomicInteger count = new AtomicInteger();
+
+	private DaemonThreads(String name)
+	{
+		this.name = name;
+	}
+
+	/** Creates a pool of the given number of daemon threads. */
+	static ExecutorService newFixedThreadPool(int threads, String name)
+	{
+		return Executors.newFixedThreadPool(threads, new DaemonThreads(name));
+	}
+
+	public Thread newThread(Runnable r)
+	{
+		Thread t = new Thread(r, name + " " + count.incrementAndGet());
+		t.setDaemon(true);
+		return t;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Support for translating a file in two passes. The first pass only collects
+ * the distinct Japanese names without English name, using a MapTranslater in
+ * collecting mode which writes to a discarding writer. The names are then
+ * transliterated as a batch by MapTranslater.transliterateNames, and the
+ * second pass writes the name tags from the resulting table. Map data
+ * contains far fewer distinct names than named elements, so each name is
+ * transliterated once.
+ */
+class DistinctNames {
+
+	/** A writer for the first pass, which discards the output. */
+	static XmlWriter discardingWriter()
+	{
+		return new XmlWriter(new WritableByteChannel() {
+			public int write(ByteBuffer src) {
+				int n = src.remaining();
+				src.position(src.limit());
+				return n;
+			}
+
+			public boolean isOpen() {
+				return true;
+			}
+
+			public void close() {
+			}
+		});
+	}
+
+}
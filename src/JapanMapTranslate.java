@@ -14,12 +14,38 @@
  */
 
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.OutputStreamWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import javax.xml.parsers.SAXParser;
 import javax.xml.parsers.SAXParserFactory;
+
+import kanaconv.RomajiConverter;
+
+import org.xml.sax.InputSource;
+
+import com.atilika.kuromoji.ipadic.Tokenizer;
  
 
 public class JapanMapTranslate 
@@ -29,19 +55,62 @@ public class JapanMapTranslate
 	private static int verbose = 0; 
 	private static boolean both = false; 
 	private static boolean advanced = false; 
+	private static boolean pbf = false; 
+	private static boolean gzip = false; 
+	private static boolean pipeline = false; 
+	private static boolean twoPass = false; 
 	private static String stat = null; 
 	private static String wordList = null; 
 	private static String transList = null; 
+	private static String engine = "sax"; 
+	private static int threads = Runtime.getRuntime().availableProcessors(); 
+	private static int jobs = 1; 
+	private static int split = 1; 
+	private static int cacheSize = 100000; 
+	private static String cacheFileName = null; 
+	private static int port = TransliterationServer.DEFAULT_PORT; 
+	
+	// Dictionaries shared by all files, loaded in the background
+	private static Transliterator transliterator = null; 
+	private static BackgroundLoad<Wordlist> sharedWordList = null; 
+	private static String sharedWordListFile = null; 
+	private static BackgroundLoad<TranslationList> sharedTransList = null; 
+	private static String sharedTransListFile = null; 
+	private static List<BackgroundLoad<?>> loads = new ArrayList<BackgroundLoad<?>>(); 
+	private static final long startTime = System.nanoTime(); 
+	private static long firstFileTime = 0; 
+	private static CacheFile sharedCacheFile = null; 
+	private static String sharedCacheFileLists = null; 
 
 	/**
 	 * @param args
 	 */
 	public static void main(String[] args) 
 	{
+		if(args.length > 0 && args[0].equals("compile")) {
+			compile(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("client")) {
+			client(args);
+			return;
+		}
+		// The server takes the options, but no files
+		boolean serve = args.length > 0 && args[0].equals("serve");
+		if(serve)
+			args = Arrays.copyOfRange(args, 1, args.length);
 		
 		boolean assignStat = false; 
 		boolean assignWordlist = false; 
 		boolean assignTranslist = false; 
+		boolean assignThreads = false; 
+		boolean assignEngine = false; 
+		boolean assignJobs = false; 
+		boolean assignSplit = false; 
+		boolean assignCacheSize = false; 
+		boolean assignCacheFile = false; 
+		boolean assignPort = false; 
+		List<String> files = new ArrayList<String>(); 
 		
 		for(String arg : args)
 		{
@@ -60,6 +129,45 @@ public class JapanMapTranslate
 				assignTranslist = false;
 				continue;
 			}
+			if(assignThreads) {
+				threads = Integer.parseInt(arg); 
+				assignThreads = false;
+				continue;
+			}
+			if(assignCacheSize) {
+				cacheSize = Integer.parseInt(arg); 
+				assignCacheSize = false;
+				continue;
+			}
+			if(assignCacheFile) {
+				cacheFileName = arg; 
+				assignCacheFile = false;
+				continue;
+			}
+			if(assignPort) {
+				port = Integer.parseInt(arg); 
+				assignPort = false;
+				continue;
+			}
+			if(assignSplit) {
+				split = Integer.parseInt(arg); 
+				assignSplit = false;
+				continue;
+			}
+			if(assignJobs) {
+				jobs = Integer.parseInt(arg); 
+				assignJobs = false;
+				continue;
+			}
+			if(assignEngine) {
+				if(!arg.equals("sax") && !arg.equals("pull") && !arg.equals("mmap")) {
+					System.out.println("Unknown engine: " + arg);
+					return;
+				}
+				engine = arg; 
+				assignEngine = false;
+				continue;
+			}
 			if(arg.equals("-v") || arg.equals("-verbose") || arg.equals("--verbose"))
 				verbose = 1;
 			else if(arg.equals("-vv"))
@@ -74,12 +182,113 @@ public class JapanMapTranslate
 				assignWordlist = true; 
 			else if(arg.equals("-trans") || arg.equals("--trans"))
 				assignTranslist = true; 
+			else if(arg.equals("-pbf") || arg.equals("--pbf"))
+				pbf = true; 
+			else if(arg.equals("-gz") || arg.equals("--gz"))
+				gzip = true; 
+			else if(arg.equals("-pipeline") || arg.equals("--pipeline"))
+				pipeline = true; 
+			else if(arg.equals("-twopass") || arg.equals("--twopass"))
+				twoPass = true; 
+			else if(arg.equals("-threads") || arg.equals("--threads"))
+				assignThreads = true; 
+			else if(arg.equals("-engine") || arg.equals("--engine"))
+				assignEngine = true; 
+			else if(arg.equals("-j") || arg.equals("--jobs"))
+				assignJobs = true; 
+			else if(arg.equals("-split") || arg.equals("--split"))
+				assignSplit = true; 
+			else if(arg.equals("-cachesize") || arg.equals("--cachesize"))
+				assignCacheSize = true; 
+			else if(arg.equals("-cache") || arg.equals("--cache"))
+				assignCacheFile = true; 
+			else if(arg.equals("-port") || arg.equals("--port"))
+				assignPort = true; 
 			else if(arg.equals("-h") || arg.equals("-help") || arg.equals("--help"))
 				doHelp();
+			else if(serve)
+				System.out.println("Files are not translated by the server: " + arg);
+			else if(jobs > 1)
+				files.add(arg); // processed concurrently below
 			else
 				translate(arg);
 		}
-
+		
+		if(serve) {
+			serve();
+			return;
+		}
+		if(!files.isEmpty())
+			translateAll(files);
+		reportStartup();
+		saveCacheFile();
+	}
+	
+	/** The compile command: writes the compiled form of the word and translation lists. */
+	private static void compile(String[] args)
+	{
+		for(int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			boolean word = arg.equals("-word") || arg.equals("--word");
+			boolean trans = arg.equals("-trans") || arg.equals("--trans");
+			if((!word && !trans) || i + 1 == args.length) {
+				System.out.println("Usage: java JapanMapTranslate compile [-word FILE] [-trans FILE]");
+				return;
+			}
+			String file = args[++i];
+			try {
+				int n = word ? Wordlist.compile(file) : TranslationList.compile(file);
+				System.out.println("Compiled " + file + " to " + CompiledDictionary.compiledFile(file) + ": " + n + " entries");
+			} catch (IOException e) {
+				System.err.println("error while compiling " + file + ": " + e.getMessage());
+			}
+		}
+	}
+	
+	/** The serve command: transliterates names for clients, see TransliterationServer. */
+	private static void serve()
+	{
+		loadDictionaries();
+		MapTranslater tr = new MapTranslater((XmlWriter)null, transliterator);
+		setup(tr);
+		try {
+			// Wait until everything is loaded and warmed up
+			transliterator.transliterate("\u6771\u4eac\u99c5");
+			for(BackgroundLoad<?> load : loads)
+				BackgroundLoad.await(load);
+			reportStartup();
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				@Override
+				public void run() {
+					saveCacheFile();
+				}
+			});
+			TransliterationServer.serve(tr, port);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	/** The client command: transliterates lines by the server, see TransliterationServer. */
+	private static void client(String[] args)
+	{
+		List<String> files = new ArrayList<String>();
+		for(int i = 1; i < args.length; i++) {
+			if(args[i].equals("-port") || args[i].equals("--port")) {
+				if(++i < args.length)
+					port = Integer.parseInt(args[i]);
+			}
+			else
+				files.add(args[i]);
+		}
+		try {
+			if(files.isEmpty())
+				TransliterationServer.client(port, null);
+			for(String file : files)
+				TransliterationServer.client(port, file);
+		} catch (IOException e) {
+			System.err.println("error while using the server on port " + port + ": " + e.getMessage());
+		}
 	}
 	
 	private static void doHelp()
@@ -89,6 +298,9 @@ public class JapanMapTranslate
 		System.out.println("Licensed under the GNU GPL. ");
 		System.out.println();
 		System.out.println("Usage: java JapanMapTranslate [OPTIONS] [FILES...]");
+		System.out.println("       java JapanMapTranslate compile [-word FILE] [-trans FILE]");
+		System.out.println("       java JapanMapTranslate serve [OPTIONS]");
+		System.out.println("       java JapanMapTranslate client [-port N] [FILES...]");
 		System.out.println("Available OPTIONS: ");
 		System.out.println("  -both       Include original Japanese name in English name");
 		System.out.println("  -adv        Also write a 'de' name containing both");
@@ -97,50 +309,395 @@ public class JapanMapTranslate
 		System.out.println("  -stat FILE  Write word occurrency statistics to FILE.");
 		System.out.println("  -trans FILE Use a translation list (kanji -> english) from FILE.");
 		System.out.println("  -word FILE  Use a translation wordlist (romaji -> english) from FILE.");
+		System.out.println("  -pbf        Write the result in the PBF format.");
+		System.out.println("  -gz         Compress the XML result with gzip.");
+		System.out.println("  -pipeline   Transliterate the names of an XML file on several threads,");
+		System.out.println("              while it is parsed. The result is the same.");
+		System.out.println("  -twopass    Read each file twice: first collect the distinct names, and");
+		System.out.println("              transliterate them on several threads, then add the name tags.");
+		System.out.println("  -split N    Split an uncompressed XML file into N parts, which are translated");
+		System.out.println("              in parallel as with the mmap engine, and joined.");
+		System.out.println("  -cachesize N Keep up to N transliterated names in memory (default: 100000, 0: off).");
+		System.out.println("  -cache FILE Reuse the transliterated names stored in FILE by earlier runs,");
+		System.out.println("              and add the new ones. Changes of the word or translation list");
+		System.out.println("              or of the program version invalidate the stored names.");
+		System.out.println("  -threads N  Use N threads for encoding, decoding and the pipeline (default: number of cores).");
+		System.out.println("  -engine E   Use engine E for XML files: 'sax' (default) writes every map");
+		System.out.println("              element anew, 'pull' copies the input verbatim and only inserts");
+		System.out.println("              the new name tags, 'mmap' does the same with a memory-mapped file");
+		System.out.println("              and without parsing the XML (uncompressed files only, otherwise");
+		System.out.println("              'pull' is used). Not used for the PBF format.");
+		System.out.println("  -j N        Process N files concurrently. The dictionaries are loaded once,");
+		System.out.println("              and all options apply to all files.");
+		System.out.println("  -port N     Port of the server on the local host (default: " + TransliterationServer.DEFAULT_PORT + ").");
 		System.out.println("  -h          Print help message.");
-		System.out.println("FILES are map data files in the OSM XML format.");
+		System.out.println("FILES are map data files in the OSM XML format, or in the OSM PBF format");
+		System.out.println("if the file name ends with .pbf. XML files ending with .bz2 or .gz are");
+		System.out.println("decompressed on the fly.");
 		System.out.println("Each file is loaded, Japanese place names are transliterated to English");
 		System.out.println("and added as English name tags. The result is saved as FILENAME.tr.osm,");
-		System.out.println("where FILENAME is the original map data file name. ");
+		System.out.println("where FILENAME is the original map data file name without .bz2 or .gz,");
+		System.out.println("or as FILENAME.tr.osm.pbf if the PBF format is selected. With -gz, the");
+		System.out.println("XML result is saved as FILENAME.tr.osm.gz. ");
+		System.out.println("OsmChange files (.osc, .osc.gz) are written as FILENAME.tr.osc in the XML");
+		System.out.println("format; the name tags are added to created and modified elements only.");
+		System.out.println("The compile command stores the word and translation lists in a binary");
+		System.out.println("form as FILE.dict, which is loaded faster. It is used instead of FILE as");
+		System.out.println("long as FILE is not changed.");
+		System.out.println("The serve command keeps the dictionaries loaded and transliterates names for");
+		System.out.println("the client command, which sends the lines of each file, one name per line,");
+		System.out.println("and writes the results as FILE.tr like 'java Transliterator FILE' does.");
+		System.out.println("Without files, the client reads the standard input.");
 		System.out.println();
 	}
 
-	private static void translate(String arg) {
+	/** Opens an input file, decompressing it if the file name ends with .bz2 or .gz. */
+	private static InputStream openInput(String file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if(file.endsWith(".bz2"))
+			return new BZip2InputStream(in, threads);
+		if(file.endsWith(".gz"))
+			return new ReadAheadInputStream(new GZIPInputStream(in, 1 << 16));
+		return new BufferedInputStream(in, 1 << 16);
+	}
+
+	/**
+	 * Starts loading the dictionaries, unless they are already loaded. They
+	 * are loaded at once on their own threads, while the first file is read;
+	 * the transliteration waits for them.
+	 */
+	private static synchronized void loadDictionaries()
+	{
+		if(transliterator == null) {
+			BackgroundLoad<Tokenizer> tokenizer = BackgroundLoad.start("tokenizer", new Callable<Tokenizer>() {
+				public Tokenizer call() {
+					return new Tokenizer();
+				}
+			});
+			loads.add(tokenizer);
+			transliterator = new Transliterator(tokenizer);
+			// Builds the romaji tables, which are shared by all threads
+			loads.add(BackgroundLoad.start("romaji tables", new Callable<RomajiConverter>() {
+				public RomajiConverter call() {
+					return new RomajiConverter();
+				}
+			}));
+		}
+		if(wordList != null && !wordList.equals(sharedWordListFile)) {
+			final String file = wordList;
+			sharedWordList = BackgroundLoad.start("word list", new Callable<Wordlist>() {
+				public Wordlist call() {
+					return new Wordlist(file);
+				}
+			});
+			loads.add(sharedWordList);
+			sharedWordListFile = wordList;
+		}
+		if(transList != null && !transList.equals(sharedTransListFile)) {
+			final String file = transList;
+			sharedTransList = BackgroundLoad.start("translation list", new Callable<TranslationList>() {
+				public TranslationList call() {
+					return new TranslationList(file);
+				}
+			});
+			loads.add(sharedTransList);
+			sharedTransListFile = transList;
+		}
+		String lists = wordList + "|" + transList;
+		if(cacheFileName != null && !lists.equals(sharedCacheFileLists)) {
+			// The stored names depend on the lists
+			saveCacheFile();
+			try {
+				long fingerprint = CacheFile.fingerprint(String.valueOf(VERSION), wordList, transList);
+				sharedCacheFile = new CacheFile(new File(cacheFileName), fingerprint);
+			} catch (IOException e) {
+				e.printStackTrace();
+				sharedCacheFile = null;
+			}
+			sharedCacheFileLists = lists;
+		}
+	}
+
+	/** Reports how long the dictionaries took to load, and when the first file was started. */
+	private static synchronized void reportStartup()
+	{
+		if(loads.isEmpty())
+			return;
+		StringBuilder sb = new StringBuilder("Startup: ");
+		if(firstFileTime != 0)
+			sb.append("first file started after ").append((firstFileTime - startTime) / 1000000).append(" ms; ");
+		sb.append("loaded ");
+		long ready = 0;
+		for(BackgroundLoad<?> load : loads) {
+			sb.append(load.getName()).append(' ');
+			if(load.getMillis() < 0)
+				sb.append("(not finished)");
+			else if(load.isFailed())
+				sb.append("FAILED after ").append(load.getMillis()).append(" ms");
+			else
+				sb.append(load.getMillis()).append(" ms");
+			sb.append(", ");
+			ready = Math.max(ready, load.getEndTime());
+		}
+		sb.append("all after ").append((ready - startTime) / 1000000).append(" ms");
+		System.out.println(sb);
+	}
+
+	/** Saves the new names of the cache file, if any. */
+	private static synchronized void saveCacheFile()
+	{
+		if(sharedCacheFile == null)
+			return;
+		System.out.println("Cache file: " + sharedCacheFile.getHits() + " names reused of " + sharedCacheFile.getNumLoaded() 
+				+ " stored, " + sharedCacheFile.getNumAdded() + " added");
+		try {
+			sharedCacheFile.save();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/** Translates several files concurrently, and reports the total result. */
+	private static void translateAll(List<String> files)
+	{
+		loadDictionaries();
+		ExecutorService pool = Executors.newFixedThreadPool(jobs);
+		List<Future<MapTranslater>> results = new ArrayList<Future<MapTranslater>>();
+		for(final String file : files) {
+			results.add(pool.submit(new Callable<MapTranslater>() {
+				public MapTranslater call() {
+					return translate(file);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		int numFiles = 0, numSuccess = 0, numPartial = 0, numFailed = 0, numEnglish = 0;
+		Map<String, Integer> allStats = new HashMap<String, Integer>();
+		for(Future<MapTranslater> result : results) {
+			MapTranslater tr;
+			try {
+				tr = result.get();
+			}
+			catch(InterruptedException | ExecutionException e) {
+				e.printStackTrace();
+				continue;
+			}
+			if(tr == null)
+				continue; // failed, already reported
+			numFiles++;
+			numSuccess += tr.getNumSuccess();
+			numPartial += tr.getNumPartial();
+			numFailed += tr.getNumFailed();
+			numEnglish += tr.getNumEnglish();
+			if(tr.getStats() != null) {
+				for(Map.Entry<String, Integer> e : tr.getStats().entrySet()) {
+					Integer v = allStats.get(e.getKey());
+					allStats.put(e.getKey(), v == null ? e.getValue() : v + e.getValue());
+				}
+			}
+		}
+		
+		System.out.println("Total for " + numFiles + " of " + files.size() + " files: " + numSuccess + " names transliterated successfully, " 
+				+ numPartial + " partial, " + numFailed + " failed, " + numEnglish + " English names used");
+		if(stat != null) {
+			try {
+				MapTranslater.writeStats(stat, allStats);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Reads a file for the first of two passes, and returns the distinct names to be transliterated. */
+	private static Set<String> collectNames(String arg, MapTranslater tr) throws Exception {
+		Set<String> names = new HashSet<String>();
+		MapTranslater collector = tr.newWorker(DistinctNames.discardingWriter());
+		collector.collectNames(names);
+		if(arg.endsWith(".pbf")) {
+			PbfReader reader = new PbfReader(threads);
+			reader.read(new File(arg), collector);
+		}
+		else if(!arg.endsWith(".bz2") && !arg.endsWith(".gz")) {
+			RandomAccessFile in = new RandomAccessFile(arg, "r");
+			try {
+				collector.translate(in.getChannel());
+			}
+			finally {
+				in.close();
+			}
+		}
+		else {
+			InputStream in = openInput(arg);
+			try {
+				collector.translate(new XmlPullReader(in));
+			}
+			finally {
+				in.close();
+			}
+		}
+		return names;
+	}
+
+	/** Applies the options and the shared dictionaries to a MapTranslater. */
+	private static void setup(MapTranslater tr)
+	{
+		tr.setVerbose(verbose);
+		tr.setBoth(both);
+		tr.setAdvanced(advanced);
+		if(wordList != null) tr.setWordList(sharedWordList);
+		if(transList != null) tr.setTranslationList(sharedTransList);
+		if(cacheSize > 0) tr.enableCache(cacheSize);
+		if(sharedCacheFile != null) tr.setCacheFile(sharedCacheFile);
+	}
+
+	/** Translates a file. Returns the MapTranslater with the result counts, or null if failed. */
+	private static MapTranslater translate(String arg) {
 		System.out.println("Transliterate " + arg);
 		
-		String outfile = arg + ".tr.osm";
+		String base = arg;
+		boolean compressed = arg.endsWith(".bz2") || arg.endsWith(".gz");
+		if(compressed)
+			base = arg.substring(0, arg.lastIndexOf('.'));
+		// OsmChange files are written as such; the deleted elements are not translated
+		boolean osc = base.endsWith(".osc");
+		boolean toPbf = pbf && !osc;
+		String outfile = base + (osc ? ".tr.osc" : toPbf ? ".tr.osm.pbf" : ".tr.osm");
+		if(gzip && !toPbf)
+			outfile += ".gz";
+		boolean splitFile = split > 1 && !toPbf && !osc && !compressed && !arg.endsWith(".pbf");
 		
 		// Use the default (non-validating) parser
 		SAXParserFactory factory = SAXParserFactory.newInstance();
 		
+		FileOutputStream fos = null;
+		PbfWriter pbfOut = null;
+		ParallelGzipOutputStream gzOut = null;
+		MapTranslater tr = null;
+		Closeable input = null;
+		boolean done = false;
 		try {
+			loadDictionaries();
+			Transliterator trl = transliterator;
+			synchronized(JapanMapTranslate.class) {
+				if(firstFileTime == 0)
+					firstFileTime = System.nanoTime();
+			}
+			
 			// Set up file output
-			FileOutputStream fos = new FileOutputStream(outfile);
-			OutputStreamWriter out = new OutputStreamWriter(fos, "UTF8");
-			// Use an instance of ourselves as the SAX event handler
-			MapTranslater tr = new MapTranslater(out);
-			tr.setVerbose(verbose);
-			tr.setBoth(both);
-			tr.setAdvanced(advanced);
-			if(stat != null) tr.enableStats(stat);
-			if(wordList != null) tr.enableWordList(wordList);
-			if(transList != null) tr.enableTranslationList(transList);
+			fos = new FileOutputStream(outfile);
+			XmlWriter out = null;
+			if(toPbf) {
+				pbfOut = new PbfWriter(new BufferedOutputStream(fos, 1 << 16), threads);
+				tr = new MapTranslater(pbfOut, trl);
+			}
+			else if(splitFile) {
+				// The parts are written by their own MapTranslaters
+				tr = new MapTranslater((XmlWriter)null, trl);
+			}
+			else {
+				if(gzip) {
+					gzOut = new ParallelGzipOutputStream(fos, threads);
+					out = new XmlWriter(Channels.newChannel(gzOut));
+				}
+				else
+					out = new XmlWriter(fos.getChannel());
+				// Use an instance of ourselves as the SAX event handler
+				tr = new MapTranslater(out, trl);
+			}
+			setup(tr);
+			// With several files at once, the statistics are written in total
+			if(stat != null) tr.enableStats(jobs > 1 ? null : stat);
+			if(twoPass) {
+				Set<String> names = collectNames(arg, tr);
+				tr.setNameTable(tr.transliterateNames(names, threads));
+				Transliterator.Batch batch = tr.getNameBatch();
+				System.out.println("  " + names.size() + " distinct names, " + batch.getNumDistinct()
+						+ " transliterated in " + batch.getMillis() + " ms");
+			}
+			if(pipeline && !toPbf && !splitFile && !arg.endsWith(".pbf")) tr.enablePipeline(threads);
 			
 		
 		    // Parse the input
-		    SAXParser saxParser = factory.newSAXParser();
-		    saxParser.parse(new File(arg), tr);
+		    if(arg.endsWith(".pbf")) {
+		    	PbfReader reader = new PbfReader(threads);
+		    	reader.read(new File(arg), tr);
+		    }
+		    else if(splitFile) {
+		    	RandomAccessFile in = new RandomAccessFile(arg, "r");
+		    	input = in;
+		    	File outDir = new File(outfile).getAbsoluteFile().getParentFile();
+		    	SplitTranslater.translate(tr, in.getChannel(), fos.getChannel(), gzip, split, outDir);
+		    	in.close();
+		    }
+		    else if(engine.equals("mmap") && !toPbf && !compressed) {
+		    	RandomAccessFile in = new RandomAccessFile(arg, "r");
+		    	input = in;
+		    	tr.translate(in.getChannel());
+		    	in.close();
+		    }
+		    else if(!engine.equals("sax") && !toPbf) {
+		    	InputStream in = openInput(arg);
+		    	input = in;
+		    	tr.translate(new XmlPullReader(in));
+		    	in.close();
+		    }
+		    else {
+		    	InputStream in = openInput(arg);
+		    	input = in;
+		    	InputSource src = new InputSource(in);
+		    	src.setSystemId(new File(arg).toURI().toString());
+		    	SAXParser saxParser = factory.newSAXParser();
+		    	saxParser.parse(src, tr);
+		    	in.close();
+		    }
 		    
-		    out.flush();
-		    out.close();
+		    if(pbfOut != null) {
+		    	pbfOut.close();
+		    }
+		    else if(out != null) {
+		    	out.flush();
+		    	out.close();
+		    }
 		    fos.close();
 		    
 		    // Output statistics. 
-		    System.out.println("  Result: " + tr.getNumSuccess() + " names transliterated successfully, " 
+		    System.out.println("  Result" + (jobs > 1 ? " for " + arg : "") + ": " + tr.getNumSuccess() + " names transliterated successfully, " 
 		    		+ tr.getNumPartial() + " partial, " + tr.getNumFailed() + " failed, " + tr.getNumEnglish() + " English names used");
+		    TransliterationCache cache = tr.getCache();
+		    if(cache != null)
+		    	System.out.println("  Cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses, " + cache.getEvictions() + " evictions");
 		    
+		    done = true;
+		    return tr;
 		} catch (Throwable t) {
 		    t.printStackTrace();
+		    return null;
+		} finally {
+			if(!done) {
+				// Stop the worker threads and release the files of the failed file
+				if(tr != null)
+					tr.abort();
+				closeQuietly(input);
+				try {
+					if(pbfOut != null)
+						pbfOut.abort();
+					if(gzOut != null)
+						gzOut.abort();
+				} catch (IOException e) {
+				}
+				closeQuietly(fos);
+			}
+		}
+	}
+
+	private static void closeQuietly(Closeable c)
+	{
+		if(c == null)
+			return;
+		try {
+			c.close();
+		} catch (IOException e) {
 		}
 	}
 
@@ -17,10 +17,15 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
 
-import org.apache.commons.lang.StringEscapeUtils;
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 import org.xml.sax.helpers.DefaultHandler;
@@ -31,12 +36,21 @@ import com.atilika.kuromoji.unidic.Tokenizer;*/
 import com.atilika.kuromoji.jumandic.Tokenizer;*/
 
  
-public class MapTranslater extends DefaultHandler 
+public class MapTranslater extends DefaultHandler implements PbfReader.Handler
 {
 	// Temporary storage
-    StringBuffer textBuffer;
+    private final StringBuilder textBuffer = new StringBuilder();
     // Output writer
-    private Writer out;
+    private XmlWriter out;
+    // PBF output, used instead of the output writer if set
+    private PbfWriter pbfOut = null;
+    private OsmElement pbfElem = null; // current map element
+    private long[] pbfBounds = null;
+    private boolean pbfHeaderDone = false;
+    // Pipeline for transliterating on several threads, or null
+    private TranslationPipeline pipeline = null;
+    // The last batch of transliterateNames, for its timing
+    private Transliterator.Batch nameBatch = null;
     // Further parameters
     private int verbose = 0;
     private boolean both = false; 
@@ -48,15 +62,44 @@ public class MapTranslater extends DefaultHandler
     private Transliterator trl = null;
     // Wordlist
     private Wordlist wordList = null; 
+    // The lists while they are loaded in the background, or null
+    private Future<Wordlist> wordListLoad = null;
+    private Future<TranslationList> translationListLoad = null;
+    // Cache of transliteration results, or null
+    private TransliterationCache cache = null;
+    // Results of earlier runs, shared by all threads, or null
+    private CacheFile cacheFile = null;
+    // Results for all names of the input, determined in advance, or null
+    private Map<String, TransliterationCache.Result> nameTable = null;
+    // Distinct names to be transliterated, if only collecting them, or null
+    private Set<String> collectedNames = null;
 
 	// Stat file stuff
 	private String statFile = null;
 	private Map<String, Integer> stats; 
     
-    public MapTranslater(Writer out)
+    public MapTranslater(XmlWriter out)
+    {
+    	this(out, new Transliterator());
+    }
+    
+    /** Creates a MapTranslater with a Transliterator, which may be shared with other threads. */
+    public MapTranslater(XmlWriter out, Transliterator trl)
     {
     	this.out = out; 
-    	trl = new Transliterator();
+    	this.trl = trl;
+    }
+    
+    /** Creates a MapTranslater that writes its output in the PBF format. */
+    public MapTranslater(PbfWriter pbfOut)
+    {
+    	this(pbfOut, new Transliterator());
+    }
+    
+    public MapTranslater(PbfWriter pbfOut, Transliterator trl)
+    {
+    	this((XmlWriter)null, trl);
+    	this.pbfOut = pbfOut;
     }
     
     public void setVerbose(int v)
@@ -76,6 +119,7 @@ public class MapTranslater extends DefaultHandler
     	advanced = b;
     }
     
+    /** Enables the word statistics. They are written to statFile at the end, unless it is null. */
     public void enableStats(String statFile)
     {
     	this.statFile = statFile;
@@ -84,15 +128,138 @@ public class MapTranslater extends DefaultHandler
     
     public void enableWordList(String wlFile)
     {
-    	wordList = new Wordlist(wlFile);
+    	setWordList(new Wordlist(wlFile));
+    }
+    
+    /** Uses a word list, which may be shared with other MapTranslaters. */
+    public void setWordList(Wordlist wl)
+    {
+    	wordList = wl;
+    }
+    
+    /** Uses a word list which is being loaded, e.g. by BackgroundLoad. The first transliteration waits for it. */
+    public void setWordList(Future<Wordlist> wl)
+    {
+    	wordListLoad = wl;
     }
     
     public void enableTranslationList(String trFile)
     {
-    	translationList = new TranslationList(trFile);
+    	setTranslationList(new TranslationList(trFile));
+    }
+    
+    /** Uses a translation list, which may be shared with other MapTranslaters. */
+    public void setTranslationList(TranslationList tl)
+    {
+    	translationList = tl;
     	translationList.setVerbose(verbose);
     }
     
+    /** Uses a translation list which is being loaded, e.g. by BackgroundLoad. The first transliteration waits for it. */
+    public void setTranslationList(Future<TranslationList> tl)
+    {
+    	translationListLoad = tl;
+    }
+    
+    /** Waits for the lists which are loaded in the background. */
+    private void awaitLists() throws IOException
+    {
+    	if(wordListLoad != null) {
+    		setWordList(BackgroundLoad.await(wordListLoad));
+    		wordListLoad = null;
+    	}
+    	if(translationListLoad != null) {
+    		setTranslationList(BackgroundLoad.await(translationListLoad));
+    		translationListLoad = null;
+    	}
+    }
+    
+    /**
+     * Transliterates the names on the given number of worker threads, while
+     * parsing continues. Only for XML output; call after the other settings.
+     */
+    public void enablePipeline(int threads)
+    {
+    	pipeline = new TranslationPipeline(this, out, threads);
+    	out = pipeline.getWriter();
+    }
+    
+    /** Creates a MapTranslater with the same settings, for another thread. */
+    MapTranslater newWorker(XmlWriter out)
+    {
+    	MapTranslater w = new MapTranslater(out, trl); // the Transliterator is thread-safe
+    	w.verbose = verbose;
+    	w.both = both;
+    	w.advanced = advanced;
+    	w.wordList = wordList;
+    	w.translationList = translationList;
+    	w.wordListLoad = wordListLoad;
+    	w.translationListLoad = translationListLoad;
+    	if(stats != null)
+    		w.stats = new HashMap<String, Integer>();
+    	if(cache != null)
+    		w.cache = new TransliterationCache(cache.getMaxSize());
+    	w.cacheFile = cacheFile;
+    	w.nameTable = nameTable;
+    	return w;
+    }
+    
+    /** Adds the result counts and word statistics of a worker. */
+    void addResults(MapTranslater w)
+    {
+    	numSuccess += w.numSuccess;
+    	numPartial += w.numPartial;
+    	numFailed += w.numFailed;
+    	numEnglish += w.numEnglish;
+    	if(cache != null)
+    		cache.addCounts(w.cache);
+    	if(stats != null) {
+    		for(Map.Entry<String, Integer> e : w.stats.entrySet()) {
+    			Integer v = stats.get(e.getKey());
+    			stats.put(e.getKey(), v == null ? e.getValue() : v + e.getValue());
+    		}
+    	}
+    }
+    
+    /** Caches up to maxSize transliteration results. */
+    public void enableCache(int maxSize)
+    {
+    	cache = new TransliterationCache(maxSize);
+    }
+    
+    /** Reuses and records transliteration results in a cache file, which may be shared. */
+    public void setCacheFile(CacheFile cacheFile)
+    {
+    	this.cacheFile = cacheFile;
+    }
+    
+    /** Uses the results for the names of the input determined in advance, e.g. by DistinctNames. */
+    public void setNameTable(Map<String, TransliterationCache.Result> nameTable)
+    {
+    	this.nameTable = nameTable;
+    }
+    
+    /**
+     * Only collects the Japanese names to be transliterated into the given set,
+     * without adding name tags.
+     */
+    public void collectNames(Set<String> names)
+    {
+    	collectedNames = names;
+    }
+    
+    /** The transliteration cache, or null if not enabled. */
+    public TransliterationCache getCache()
+    {
+    	return cache;
+    }
+    
+    /** The word statistics, or null if not enabled. */
+    public Map<String, Integer> getStats()
+    {
+    	return stats;
+    }
+    
     // Output statistics: 
     private int numSuccess = 0, numPartial = 0, numFailed = 0, numEnglish = 0; 
     
@@ -119,46 +286,439 @@ public class MapTranslater extends DefaultHandler
     private String enNameOnly = null; // only "name:en"
     private String deName = null; // only "name:de"
     
+    // Whether the current map element is in a <delete> block of an OsmChange file
+    private boolean inDelete = false;
+    
+    // Name tags to be added to the current map element, or null
+    private String newEnName = null; // "name:en"
+    private String newDeName = null; // "name:de" (advanced mode only)
+
     public boolean isMapElem(String elemName)
     {
     	return elemName.equals("way") || elemName.equals("node") || elemName.equals("relation");
     }
-    
 
+    /** Whether an element is a block of deleted map elements in an OsmChange file. */
+    public static boolean isDeleteBlock(String elemName)
+    {
+    	return elemName.equals("delete");
+    }
+
+    /** Starts a new map element. Its names are collected by subsequent calls to mapTag. */
+    public void startMapElem()
+    {
+    	jaName = null;
+    	enName = null;
+    	enNameOnly = null;
+    	deName = null;
+    	newEnName = null;
+    	newDeName = null;
+    }
+
+    /** Collects the names from a tag of the current map element. */
+    public void mapTag(String key, String value)
+    {
+    	if(key.equals("name:en") || (key.equals("name:ja_rm") && enName == null))
+    		enName = value;
+    	else if(key.equals("name:de"))
+    		deName = value;
+    	else if(key.equals("name") || key.equals("name:ja"))
+    		jaName = value;
+    	if(key.equals("name:en"))
+    		enNameOnly = value;
+    }
+
+    /** Determines the name tags to be added to a map element with the given names. */
+    void translateNames(String jaName, String enName, String enNameOnly, String deName) throws IOException
+    {
+    	this.jaName = jaName;
+    	this.enName = enName;
+    	this.enNameOnly = enNameOnly;
+    	this.deName = deName;
+    	translateMapElem();
+    }
+
+    /** Name tag "name:en" to be added to the current map element, or null. Valid after translateMapElem. */
+    public String getNewEnName()
+    {
+    	return newEnName;
+    }
+
+    /** Name tag "name:de" to be added to the current map element, or null. Valid after translateMapElem. */
+    public String getNewDeName()
+    {
+    	return newDeName;
+    }
+
+    /**
+     * Determines the name tags to be added to the current map element,
+     * transliterating its Japanese name if necessary.
+     */
+    public void translateMapElem() throws IOException
+    {
+    	newEnName = null;
+    	newDeName = null;
+    	if(collectedNames != null) {
+    		if(enName == null && jaName != null && Transliterator.hasAsianChar(jaName))
+    			collectedNames.add(jaName);
+    		return;
+    	}
+
+    	// The transliterated name. May be used by both english and advanced outputs.
+    	// Do the transliteration here once, if necessary.
+    	String trName = enName;
+    	// If desired, the name with wordlist translation applied.
+    	String woName = trName;
+
+    	if((enName == null) && jaName != null) {
+    		// First check: are there kanji in the jaName?
+    		if(Transliterator.hasAsianChar(jaName)) {
+				TransliterationCache.Result names = transliterateName(jaName);
+				trName = names.trName;
+				woName = names.woName;
+
+				// Check result
+				boolean fail = (trName.equals(jaName));
+				boolean partial = !fail && Transliterator.hasAsianChar(trName);
+				if(fail) {
+					numFailed++;
+					trName = null;
+					woName = null;
+				}
+				else if(partial) {
+					numPartial++;
+				}
+				else {
+					numSuccess++;
+				}
+
+				if(verbose > 0) {
+					String result =      "success: ";
+					if(partial) result = "partial: ";
+					if(fail) result =    "FAILURE: ";
+					if(fail || partial || verbose > 1)
+						System.out.println(result + "generated english name: " + woName + " from japanese name: " + jaName);
+				}
+    		}
+    	}
+
+    	if(woName != null) {
+        	// Write the english name
+        	if(enNameOnly == null && jaName != null) {
+				// Output the transliterated name
+    			String finalName = woName;
+    			// TODO: additional translation of the finalName should be done here. For now, just do stats.
+    			if(stats != null) {
+        			String[] words = trName.trim().split("\\s+");
+        			for(String word : words) {
+        				String tok = word.toLowerCase();
+        				Integer val = stats.get(tok);
+        				int v = 0;
+        				if(val != null) v = val.intValue();
+        				stats.put(tok, v+1);
+        			}
+    			}
+
+    			if(both) finalName = finalName + " (" + jaName + ")";
+    			newEnName = finalName;
+        	}
+    	}
+
+    	// Determine the "advanced" name also, if enabled
+    	if(advanced && deName == null && jaName != null) {
+    		String finalName = null;
+    		// Null check: can we use the english name instead?
+    		if(enName != null) {
+    			// Output the english name
+    			finalName = jaName; if(!enName.equals(jaName)) finalName = finalName + " (" + enName + ")";
+    			numEnglish++;
+    		}
+    		// No, there is none. Use the trName instead, if exists.
+    		if(trName != null) {
+    			finalName = jaName; if(!trName.equals(jaName)) finalName = finalName + " (" + trName + ")";
+    		}
+    		newDeName = finalName;
+    	}
+    }
+
+    /**
+     * Transliterates a Japanese name and applies the word list, if enabled.
+     * The results determined in advance and the caches are used first.
+     */
+    TransliterationCache.Result transliterateName(String jaName) throws IOException
+    {
+    	TransliterationCache.Result cached = nameTable != null ? nameTable.get(jaName) : null;
+    	if(cached != null)
+    		return cached;
+    	cached = cache != null ? cache.get(jaName) : null;
+    	if(cached == null && cacheFile != null) {
+    		cached = cacheFile.get(jaName);
+    		if(cached != null && cache != null)
+    			cache.put(jaName, cached);
+    	}
+    	if(cached != null)
+    		return cached;
+
+    	// Transliterate all writing systems
+    	awaitLists();
+    	String trName = transliterate(jaName);
+    	String woName = trName;
+    	// additional translation using word list, if desired
+    	if(wordList != null) {
+    		woName = wordList.translate(woName);
+    	}
+    	TransliterationCache.Result result = new TransliterationCache.Result(trName, woName);
+    	if(cache != null)
+    		cache.put(jaName, result);
+    	if(cacheFile != null)
+    		cacheFile.put(jaName, result);
+    	return result;
+    }
+
+    /** The batch of the names not found in the cache file by the last transliterateNames, for its timing, or null. */
+    public Transliterator.Batch getNameBatch()
+    {
+    	return nameBatch;
+    }
+
+    /**
+     * Transliterates a batch of Japanese names on the given number of threads
+     * and applies the word list, as transliterateName does for each. Returns
+     * the table of results, e.g. for setNameTable.
+     */
+    public Map<String, TransliterationCache.Result> transliterateNames(Collection<String> names, int threads)
+    		throws IOException
+    {
+    	Map<String, TransliterationCache.Result> table = new HashMap<String, TransliterationCache.Result>(2 * names.size());
+    	List<String> todo = new ArrayList<String>();
+    	for(String jaName : names) {
+    		TransliterationCache.Result cached = cacheFile != null ? cacheFile.get(jaName) : null;
+    		if(cached != null)
+    			table.put(jaName, cached);
+    		else
+    			todo.add(jaName);
+    	}
+    	awaitLists();
+    	Transliterator.Batch batch = trl.transliterateAll(todo, translationList, threads);
+    	nameBatch = batch;
+    	List<String> trNames = batch.getResults();
+    	for(int i = 0; i < todo.size(); i++) {
+    		String trName = trNames.get(i);
+    		String woName = wordList != null ? wordList.translate(trName) : trName;
+    		TransliterationCache.Result result = new TransliterationCache.Result(trName, woName);
+    		table.put(todo.get(i), result);
+    		if(cacheFile != null)
+    			cacheFile.put(todo.get(i), result);
+    	}
+    	return table;
+    }
+
+    /** Writes the word occurrency statistics, if enabled. */
+    void writeStats() throws IOException
+    {
+    	if(statFile != null)
+    		writeStats(statFile, stats);
+    }
+
+    /** Writes word occurrency statistics to a file. */
+    public static void writeStats(String statFile, Map<String, Integer> stats) throws IOException
+    {
+    	Writer wr = new OutputStreamWriter(new FileOutputStream(statFile), "UTF-8");
+    	for (String item : stats.keySet()) {
+			wr.write(item);
+			wr.write('\t');
+			wr.write(stats.get(item).toString());
+			wr.write('\n');
+		}
+    	wr.close();
+    }
 
 
     //===========================================================
-    // SAX DocumentHandler methods
+    // Verbatim XML translation
     //===========================================================
+
+    /**
+     * Translates an OSM XML file read by the pull parser. Everything is copied
+     * from the input unchanged; the new name tags of a map element are inserted
+     * before its closing tag.
+     */
+    public void translate(XmlPullReader reader) throws IOException {
+    	boolean inMapElem = false;
+    	int event;
+    	while((event = reader.next()) != XmlPullReader.END_DOCUMENT) {
+    		String eName = reader.getName();
+    		if(event == XmlPullReader.START_ELEMENT) {
+    			if(isDeleteBlock(eName))
+    				inDelete = !reader.isEmptyElement();
+    			else if(isMapElem(eName)) {
+    				startMapElem();
+    				inMapElem = !reader.isEmptyElement() && !inDelete; // an empty or deleted element gets no names
+    			}
+    			else if(inMapElem && eName.equals("tag")) {
+    				// Only names are of interest, skip decoding other tags
+    				int k = reader.getAttributeIndex("k");
+    				if(k >= 0 && reader.attributeValueStartsWith(k, "name"))
+    					mapTag(reader.getAttributeValue(k), reader.getAttributeValue("v"));
+    			}
+    		}
+    		else if(isDeleteBlock(eName))
+    			inDelete = false;
+    		else if(inMapElem && isMapElem(eName)) {
+    			reader.copyTo(out, reader.getTagStart());
+    			insertNewTags();
+    			inMapElem = false;
+    		}
+    		// Keep the current map element in the reader until its end is known
+    		if(!inMapElem)
+    			reader.copyTo(out, reader.getTagEnd());
+    	}
+    	reader.copyTo(out, reader.getTagEnd());
+    	finishOutput();
+    	writeStats();
+    }
+
+    /**
+     * Translates an uncompressed OSM XML file with the raw scanner. As with the
+     * pull parser, the input is copied and the new name tags are inserted.
+     */
+    public void translate(FileChannel in) throws IOException {
+    	translate(in, 0, in.size());
+    }
+
+    /** Translates the part of a file from start to end with the raw scanner. */
+    public void translate(FileChannel in, long start, long end) throws IOException {
+    	MappedXmlScanner scanner = new MappedXmlScanner(in, start, end, out);
+    	while(scanner.nextMapElement()) {
+    		startMapElem();
+    		for(int i = 0; i < scanner.getNumNameTags(); i++)
+    			mapTag(scanner.getNameKey(i), scanner.getNameValue(i));
+    		scanner.copyTo(scanner.getCloseTagStart());
+    		insertNewTags();
+    	}
+    	scanner.finish();
+    	finishOutput();
+    	writeStats();
+    }
+
+    //===========================================================
+    // PbfReader.Handler methods
+    //===========================================================
+    public void header(long[] bbox) throws IOException {
+    	if(pbfOut != null) {
+    		pbfOut.writeHeader(bbox);
+    		return;
+    	}
+    	out.write("<?xml version='1.0' encoding='UTF-8'?>\n");
+    	out.write("<osm version=\"0.6\" generator=\"JapanMapTranslate ").write(String.valueOf(JapanMapTranslate.VERSION)).write("\">\n");
+    	if(bbox != null) {
+    		out.write("  <bounds minlon=\"").writeCoordinate(bbox[0])
+    			.write("\" minlat=\"").writeCoordinate(bbox[3])
+    			.write("\" maxlon=\"").writeCoordinate(bbox[1])
+    			.write("\" maxlat=\"").writeCoordinate(bbox[2]).write("\"/>\n");
+    	}
+    }
+
+    public void element(OsmElement e) throws IOException {
+    	startMapElem();
+    	for(int i = 0; i < e.getNumTags(); i++)
+    		mapTag(e.getTagKey(i), e.getTagValue(i));
+    	translateMapElem();
+    	if(pbfOut != null)
+    		writePbfElement(e);
+    	else
+    		writeElement(e);
+    }
+
+    public void end() throws IOException {
+    	if(pbfOut == null) {
+    		out.write("</osm>\n");
+    		out.flush();
+    	}
+    	writeStats();
+    }
+
+    /** Adds the new name tags to a map element and writes it to the PBF output. */
+    private void writePbfElement(OsmElement e) throws IOException {
+    	if(newEnName != null)
+    		e.addTag("name:en", newEnName);
+    	if(newDeName != null)
+    		e.addTag("name:de", newDeName);
+    	pbfOut.write(e);
+    }
+
+    /** Writes a map element in the OSM XML format, including the new name tags. */
+    private void writeElement(OsmElement e) throws IOException {
+    	String eName = e.getTypeName();
+    	out.write("  <").write(eName).write(" id=\"").write(e.id).write('"');
+    	if(e.version >= 0)
+    		out.write(" version=\"").write(e.version).write('"');
+    	if(e.timestamp >= 0)
+    		out.write(" timestamp=\"").writeTimestamp(e.timestamp).write('"');
+    	if(e.uid >= 0)
+    		out.write(" uid=\"").write(e.uid).write('"');
+    	if(e.user != null)
+    		out.write(" user=\"").writeEscaped(e.user).write('"');
+    	if(e.changeset >= 0)
+    		out.write(" changeset=\"").write(e.changeset).write('"');
+    	if(!e.visible)
+    		out.write(" visible=\"false\"");
+    	if(e.type == OsmElement.NODE) {
+    		out.write(" lat=\"").writeCoordinate(e.lat).write('"');
+    		out.write(" lon=\"").writeCoordinate(e.lon).write('"');
+    	}
+    	if(e.numTags == 0 && e.numRefs == 0 && e.numMembers == 0 && newEnName == null && newDeName == null) {
+    		out.write("/>\n");
+    		return;
+    	}
+    	out.write(">\n");
+    	for(int i = 0; i < e.numRefs; i++)
+    		out.write("    <nd ref=\"").write(e.refs[i]).write("\"/>\n");
+    	for(int i = 0; i < e.numMembers; i++) {
+    		out.write("    <member type=\"").write(OsmElement.TYPE_NAMES[e.memberTypes[i]])
+    			.write("\" ref=\"").write(e.memberRefs[i])
+    			.write("\" role=\"").writeEscaped(e.memberRoles[i]).write("\"/>\n");
+    	}
+    	for(int i = 0; i < e.numTags; i++)
+    		writeTag(e.getTagKey(i), e.getTagValue(i));
+    	if(newEnName != null)
+    		writeTag("name:en", newEnName);
+    	if(newDeName != null)
+    		writeTag("name:de", newDeName);
+    	out.write("  </").write(eName).write(">\n");
+    }
+
+    private void writeTag(String key, String value) throws IOException {
+    	out.write("    <tag k=\"").writeEscaped(key).write("\" v=\"").writeEscaped(value).write("\"/>\n");
+    }
+
     public void startDocument() throws SAXException {
+        if(pbfOut != null)
+            return;
         emit("<?xml version='1.0' encoding='UTF-8'?>");
         nl();
     }
 
     public void endDocument() throws SAXException {
         try {
-            nl();
-            out.flush();
+            if(pbfOut != null) {
+                if(!pbfHeaderDone)
+                    pbfOut.writeHeader(pbfBounds);
+            }
+            else {
+                nl();
+                finishOutput();
+            }
         } catch (IOException e) {
             throw new SAXException("I/O error", e);
         }
         
         // Stats handling: 
-        if(statFile != null) {
-        	try {
-        		Writer wr = new OutputStreamWriter(new FileOutputStream(statFile), "UTF-8");
-        		for (String item : stats.keySet()) {
-					wr.write(item);
-					wr.write('\t');
-					wr.write(stats.get(item).toString());
-					wr.write('\n');
-				}
-        		wr.close();
-        	}
-        	catch(IOException e) {
-        		throw new SAXException("Stat writing error", e);
-        	}
-        	
+        try {
+        	writeStats();
+        }
+        catch(IOException e) {
+        	throw new SAXException("Stat writing error", e);
         }
     }
 
@@ -173,42 +733,41 @@ public class MapTranslater extends DefaultHandler
             eName = qName; // not namespaceAware
         }
 
-        if(isMapElem(eName)) {
+        if(isDeleteBlock(eName))
+        	inDelete = true;
+        else if(isMapElem(eName)) {
         	// New map elem starts. Now we have to look for its names... 
-        	jaName = null;
-        	enName = null;
-        	enNameOnly = null;
-        	deName = null; 
+        	startMapElem();
         }
         else if(eName.equals("tag"))
         {
-        	String key = attrs.getValue("k");
-        	if(key.equals("name:en") || (key.equals("name:ja_rm") && enName == null))
-        		enName = attrs.getValue("v");
-        	else if(key.equals("name:de"))
-        		deName = attrs.getValue("v");
-        	else if(key.equals("name") || key.equals("name:ja"))
-        		jaName = attrs.getValue("v");
-        	if(key.equals("name:en"))
-        		enNameOnly = attrs.getValue("v");
+        	mapTag(attrs.getValue("k"), attrs.getValue("v"));
         }
 
-        emit("<" + eName);
+        if(pbfOut != null) {
+        	collectPbfElement(eName, attrs);
+        	return;
+        }
 
-        if (attrs != null) {
-            for (int i = 0; i < attrs.getLength(); i++) {
-                String aName = attrs.getLocalName(i); // Attr name 
+        try {
+            out.write('<').write(eName);
 
-                if ("".equals(aName)) {
-                    aName = attrs.getQName(i);
-                }
+            if (attrs != null) {
+                for (int i = 0; i < attrs.getLength(); i++) {
+                    String aName = attrs.getLocalName(i); // Attr name 
 
-                emit(" ");
-                emit(aName + "=\"" + StringEscapeUtils.escapeXml(attrs.getValue(i)) + "\"");
+                    if ("".equals(aName)) {
+                        aName = attrs.getQName(i);
+                    }
+
+                    out.write(' ').write(aName).write("=\"").writeEscaped(attrs.getValue(i)).write('"');
+                }
             }
-        }
 
-        emit(">");
+            out.write('>');
+        } catch (IOException e) {
+            throw new SAXException("I/O error", e);
+        }
     }
 
     public void endElement(String namespaceURI, String sName, // simple name
@@ -222,118 +781,109 @@ public class MapTranslater extends DefaultHandler
             eName = qName; // not namespaceAware
         }
         
-        if(isMapElem(eName)) {
-        	// The transliterated name. May be used by both english and advanced outputs. 
-        	// Do the transliteration here once, if necessary. 
-        	String trName = enName; 
-        	// If desired, the name with wordlist translation applied. 
-        	String woName = trName;
-        	
-        	if((enName == null) && jaName != null) {
-        		// First check: are there kanji in the jaName? 
-        		if(Transliterator.hasAsianChar(jaName)) {
-					try {
-						// Transliterate all writing systems
-						trName = transliterate(jaName);
-						woName = trName;
-	        			// additional translation using word list, if desired
-	        			if(wordList != null) {
-	        				woName = wordList.translate(woName);
-	        			}						
-						
-						// Check result
-						boolean fail = (trName.equals(jaName));
-						boolean partial = !fail && Transliterator.hasAsianChar(trName);
-						if(fail) {
-							numFailed++;
-							trName = null; 
-							woName = null;
-						}
-						else if(partial) { 
-							numPartial++;
-						}
-						else { 
-							numSuccess++;
-						}
-						
-						if(verbose > 0) {
-							String result =      "success: ";
-							if(partial) result = "partial: ";
-							if(fail) result =    "FAILURE: ";
-							if(fail || partial || verbose > 1)
-								System.out.println(result + "generated english name: " + woName + " from japanese name: " + jaName);
-						}
-						
-					} catch (IOException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+        if(isDeleteBlock(eName))
+        	inDelete = false;
+        else if(isMapElem(eName) && !inDelete) {
+        	if(pbfOut != null) {
+        		try {
+        			translateMapElem();
+        			writePbfElement(pbfElem);
+        		} catch (IOException e) {
+        			throw new SAXException("I/O error", e);
         		}
+        		pbfElem = null;
+        		return;
         	}
-        	
-        	if(woName != null) {
-	        	// Write the english name
-	        	if(enNameOnly == null && jaName != null) {
-					// Output the transliterated name
-	        		if(woName != null) {
-	        			String finalName = woName;
-	        			// TODO: additional translation of the finalName should be done here. For now, just do stats.
-	        			if(statFile != null) {
-		        			String[] words = trName.trim().split("\\s+");
-		        			for(String word : words) {
-		        				String tok = word.toLowerCase();
-		        				Integer val = stats.get(tok);
-		        				int v = 0; 
-		        				if(val != null) v = val.intValue();
-		        				stats.put(tok, v+1);
-		        			}
-	        			}
-
-	        			// Actual Output
-	        			if(both) finalName = finalName + " (" + jaName + ")";
-	        			String out = "<tag k=\"name:en\" v=\"" + StringEscapeUtils.escapeXml(finalName)
-	        					+ "\" />\n";
-	        			emit(out);
-	        		}
-	        	}
-        	}
-        	
-        	// Write the "advanced" name also, if enabled
-        	if(advanced && deName == null && jaName != null) {
-        		String finalName = null; 
-        		// Null check: can we use the english name instead? 
-        		if(enName != null) {
-        			// Output the english name
-        			finalName = jaName; if(!enName.equals(jaName)) finalName = finalName + " (" + enName + ")";
-        			numEnglish++;
-        		}
-        		// No, there is none. Use the trName instead, if exists.
-        		if(trName != null) {
-        			finalName = jaName; if(!trName.equals(jaName)) finalName = finalName + " (" + trName + ")";
-        		}
-        		if(finalName != null)
-        		{
-	        		// Finally output the advanced name.
-	    			String out = "<tag k=\"name:de\" v=\"" + StringEscapeUtils.escapeXml(finalName)
-	    					+ "\" />\n";
-	    			emit(out);
-        		}
+        	try {
+        		insertNewTags();
+        	} catch (IOException e) {
+        		throw new SAXException("I/O error", e);
         	}
         }
 
-        emit("</" + eName + ">");
+        if(pbfOut != null)
+        	return;
+
+        emit("</");
+        emit(eName);
+        emit(">");
+    }
+
+    /**
+     * Translates the current map element and writes its new name tags, which
+     * are inserted before its closing tag. With the pipeline, this is done later.
+     */
+    private void insertNewTags() throws IOException {
+    	if(pipeline != null) {
+    		pipeline.insertNames(jaName, enName, enNameOnly, deName);
+    		return;
+    	}
+    	translateMapElem();
+    	writeNewTags(out, newEnName, newDeName);
+    }
+
+    /** Writes new name tags, as inserted before the closing tag of a map element. */
+    static void writeNewTags(XmlWriter out, String newEnName, String newDeName) throws IOException {
+    	if(newEnName != null)
+    		out.write("<tag k=\"name:en\" v=\"").writeEscaped(newEnName).write("\" />\n");
+    	if(newDeName != null)
+    		out.write("<tag k=\"name:de\" v=\"").writeEscaped(newDeName).write("\" />\n");
+    }
+
+    /** Writes the rest of the XML output, waiting for the pipeline if enabled. */
+    private void finishOutput() throws IOException {
+    	if(pipeline != null)
+    		pipeline.finish();
+    	else
+    		out.flush();
+    }
+
+    /** Stops the threads of the pipeline, if enabled, after a failure. */
+    void abort() {
+    	if(pipeline != null)
+    		pipeline.abort();
+    }
+
+    /** Collects the contents of a map element from the XML input for the PBF output. */
+    private void collectPbfElement(String eName, Attributes attrs) throws SAXException {
+    	try {
+    		if(eName.equals("bounds")) {
+    			pbfBounds = new long[] {
+    					OsmElement.parseCoordinate(attrs.getValue("minlon")),
+    					OsmElement.parseCoordinate(attrs.getValue("maxlon")),
+    					OsmElement.parseCoordinate(attrs.getValue("maxlat")),
+    					OsmElement.parseCoordinate(attrs.getValue("minlat")) };
+    		}
+    		else if(isMapElem(eName)) {
+    			if(!pbfHeaderDone) {
+    				pbfOut.writeHeader(pbfBounds);
+    				pbfHeaderDone = true;
+    			}
+    			pbfElem = OsmElement.fromXml(eName, attrs);
+    		}
+    		else if(pbfElem != null) {
+    			if(eName.equals("tag"))
+    				pbfElem.addTag(attrs.getValue("k"), attrs.getValue("v"));
+    			else if(eName.equals("nd"))
+    				pbfElem.addRef(Long.parseLong(attrs.getValue("ref")));
+    			else if(eName.equals("member")) {
+    				int type = OsmElement.typeOf(attrs.getValue("type"));
+    				if(type < 0)
+    					throw new SAXException("Invalid member type " + attrs.getValue("type"));
+    				pbfElem.addMember(type, Long.parseLong(attrs.getValue("ref")), attrs.getValue("role"));
+    			}
+    		}
+    	} catch (IOException e) {
+    		throw new SAXException("I/O error", e);
+    	} catch (NumberFormatException e) {
+    		throw new SAXException("Invalid map element", e);
+    	}
     }
 
 
 	public void characters(char[] buf, int offset, int len)
         throws SAXException {
-        String s = new String(buf, offset, len);
-
-        if (textBuffer == null) {
-            textBuffer = new StringBuffer(s);
-        } else {
-            textBuffer.append(s);
-        }
+        textBuffer.append(buf, offset, len);
     }
 
     //===========================================================
@@ -341,20 +891,24 @@ public class MapTranslater extends DefaultHandler
     //===========================================================
 	private String transliterate(String s) throws IOException
 	{
-		if(translationList != null) {
-			s = trl.prenormalize(s);
-			s = translationList.translate(trl.getTokenizer(), s);
-		}
-		return trl.transliterate(s);
+		return trl.transliterate(s, translationList);
 	}
 	
     private void echoText() throws SAXException {
-        if (textBuffer == null) {
+        if (textBuffer.length() == 0) {
+            return;
+        }
+        if (pbfOut != null) {
+            textBuffer.setLength(0); // no text in the PBF format
             return;
         }
 
-        emit(StringEscapeUtils.escapeXml(textBuffer.toString()));
-        textBuffer = null;
+        try {
+            out.writeEscaped(textBuffer);
+        } catch (IOException e) {
+            throw new SAXException("I/O error", e);
+        }
+        textBuffer.setLength(0);
     }
 
     // Wrap I/O exceptions in SAX exceptions, to
@@ -368,12 +922,12 @@ public class MapTranslater extends DefaultHandler
         }
     }
 
+    private static final String LINE_END = System.getProperty("line.separator");
+
     // Start a new line
     private void nl() throws SAXException {
-        String lineEnd = System.getProperty("line.separator");
-
         try {
-            out.write(lineEnd);
+            out.write(LINE_END);
         } catch (IOException e) {
             throw new SAXException("I/O error", e);
         }
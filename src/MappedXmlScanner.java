@@ -0,0 +1,334 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Raw scanner for uncompressed OSM XML files. The file is memory-mapped in
+ * large windows, and map elements and their name tags are found by byte
+ * search, without parsing the XML. Only the keys and values of the name
+ * tags are decoded. Everything else is copied to the output as slices of
+ * the mapped file, so that new tags can be inserted into a map element.
+ * The input is expected to be well-formed, as the SAX engine would check.
+ */
+public class MappedXmlScanner {
+
+	static final int WINDOW_SIZE = 1 << 28;
+
+	private static final byte[][] MAP_ELEMS = { "node".getBytes(), "way".getBytes(), "relation".getBytes() };
+	private static final byte[] TAG = "tag".getBytes();
+	private static final byte[] DELETE = "delete".getBytes();
+
+	private final FileChannel in;
+	private final XmlWriter out;
+	private final long end;
+
+	// The mapped window of the file
+	private MappedByteBuffer window;
+	private ByteBuffer view; // for copying slices of the window
+	private long winStart = 0;
+	private int winSize = WINDOW_SIZE;
+	private int limit = 0;
+
+	private int pos = 0; // scan position in the window
+	private long copyPos = 0; // file offset up to which the input was copied
+
+	// The current map element
+	private int closeStart, elemEnd;
+	private boolean inDelete = false; // in a <delete> block of an OsmChange file
+	private int[] nameTags = new int[16]; // start and end of key and value, per name tag
+	private int numNameTags = 0;
+	private byte[] scratch = new byte[256];
+
+	public MappedXmlScanner(FileChannel in, XmlWriter out) throws IOException
+	{
+		this(in, 0, in.size(), out);
+	}
+
+	/** Scans the part of the file from start to end, which must not split a map element. */
+	public MappedXmlScanner(FileChannel in, long start, long end, XmlWriter out) throws IOException
+	{
+		this.in = in;
+		this.out = out;
+		this.end = end;
+		copyPos = start;
+		map(start);
+	}
+
+	/**
+	 * Advances to the next map element with name tags.
+	 * Returns false at the end of the input.
+	 */
+	public boolean nextMapElement() throws IOException
+	{
+		while(true) {
+			int i = pos;
+			while(i < limit && window.get(i) != '<')
+				i++;
+			if(i >= limit && atEnd()) {
+				pos = limit;
+				return false;
+			}
+			int end = i < limit ? scanMapElement(i) : -1;
+			if(end < 0) {
+				// Continue in the next window
+				remap(i);
+				continue;
+			}
+			pos = end;
+			if(elemEnd > 0 && numNameTags > 0 && !inDelete)
+				return true;
+		}
+	}
+
+	public int getNumNameTags() {
+		return numNameTags;
+	}
+
+	public String getNameKey(int i) throws IOException {
+		return decode(nameTags[4 * i], nameTags[4 * i + 1]);
+	}
+
+	public String getNameValue(int i) throws IOException {
+		return decode(nameTags[4 * i + 2], nameTags[4 * i + 3]);
+	}
+
+	/** File offset of the closing tag of the current map element. */
+	public long getCloseTagStart() {
+		return winStart + closeStart;
+	}
+
+	/** Copies the input from the copy position up to the given file offset, which must be in the window. */
+	public void copyTo(long offset) throws IOException
+	{
+		if(offset <= copyPos)
+			return;
+		view.clear();
+		view.position((int)(copyPos - winStart));
+		view.limit((int)(offset - winStart));
+		out.write(view);
+		copyPos = offset;
+	}
+
+	/** Copies the rest of the input. */
+	public void finish() throws IOException
+	{
+		while(true) {
+			copyTo(winStart + limit);
+			if(atEnd())
+				break;
+			map(winStart + limit);
+		}
+	}
+
+	//===========================================================
+	// Windows
+	//===========================================================
+
+	private boolean atEnd() {
+		return winStart + limit >= end;
+	}
+
+	private void map(long start) throws IOException
+	{
+		winStart = start;
+		limit = (int)Math.min(end - start, winSize);
+		window = in.map(FileChannel.MapMode.READ_ONLY, start, limit);
+		view = window.duplicate();
+		pos = 0;
+	}
+
+	/** Maps the next window, starting at the given position of the current window. */
+	private void remap(int restart) throws IOException
+	{
+		if(atEnd())
+			throw new IOException("Unexpected end of XML input at offset " + (winStart + limit));
+		if(restart == 0) {
+			// A single element is larger than the window
+			if(winSize > Integer.MAX_VALUE / 2)
+				throw new IOException("XML element too large at offset " + winStart);
+			winSize *= 2;
+		}
+		copyTo(winStart + restart);
+		map(winStart + restart);
+	}
+
+	//===========================================================
+	// Scanning
+	//===========================================================
+
+	/**
+	 * Scans the markup starting with '<' at position i. If it is a map element,
+	 * its name tags and the position of its closing tag are recorded. The
+	 * delete blocks of OsmChange files are tracked.
+	 * Returns the position after the markup, or -1 if it does not end in the window.
+	 */
+	private int scanMapElement(int i)
+	{
+		elemEnd = 0;
+		numNameTags = 0;
+		byte[] elemName = null;
+		for(byte[] n : MAP_ELEMS) {
+			if(matchName(i + 1, n)) {
+				elemName = n;
+				break;
+			}
+		}
+		if(elemName == null) {
+			int end = skipMarkup(i);
+			if(end > 0 && matchName(i + 1, DELETE))
+				inDelete = window.get(end - 2) != '/';
+			else if(end > 0 && window.get(i + 1) == '/' && matchName(i + 2, DELETE))
+				inDelete = false;
+			return end;
+		}
+
+		int j = skipTag(i);
+		if(j < 0)
+			return -1;
+		if(window.get(j - 2) == '/')
+			return j; // empty element
+
+		while(true) {
+			while(j < limit && window.get(j) != '<')
+				j++;
+			if(j >= limit)
+				return -1;
+			if(j + 1 < limit && window.get(j + 1) == '/' && matchName(j + 2, elemName)) {
+				closeStart = j;
+				int end = skipTag(j);
+				if(end > 0)
+					elemEnd = end;
+				return end;
+			}
+			int end = matchName(j + 1, TAG) ? scanTag(j) : skipMarkup(j);
+			if(end < 0)
+				return -1;
+			j = end;
+		}
+	}
+
+	/** Checks whether the bytes at position i are the given name, followed by the end of the name. */
+	private boolean matchName(int i, byte[] name)
+	{
+		if(i + name.length >= limit)
+			return false;
+		for(int k = 0; k < name.length; k++) {
+			if(window.get(i + k) != name[k])
+				return false;
+		}
+		byte c = window.get(i + name.length);
+		return c == ' ' || c == '>' || c == '/' || c == '\n' || c == '\t' || c == '\r';
+	}
+
+	/** Skips a comment, processing instruction or other tag. Returns the position after it, or -1. */
+	private int skipMarkup(int i)
+	{
+		if(i + 4 <= limit && window.get(i + 1) == '!' && window.get(i + 2) == '-' && window.get(i + 3) == '-') {
+			for(int j = i + 4; j + 3 <= limit; j++) {
+				if(window.get(j) == '-' && window.get(j + 1) == '-' && window.get(j + 2) == '>')
+					return j + 3;
+			}
+			return -1;
+		}
+		return skipTag(i);
+	}
+
+	/** Skips a tag, ignoring '>' in quoted attribute values. Returns the position after it, or -1. */
+	private int skipTag(int i)
+	{
+		byte quote = 0;
+		for(int j = i + 1; j < limit; j++) {
+			byte c = window.get(j);
+			if(quote != 0) {
+				if(c == quote)
+					quote = 0;
+			}
+			else if(c == '"' || c == '\'')
+				quote = c;
+			else if(c == '>')
+				return j + 1;
+		}
+		return -1;
+	}
+
+	/** Scans a <tag> element and records it if its key starts with "name". Returns the position after it, or -1. */
+	private int scanTag(int i)
+	{
+		int kStart = -1, kEnd = -1, vStart = -1, vEnd = -1;
+		int j = i + 4;
+		while(j < limit) {
+			byte c = window.get(j);
+			if(c == '>') {
+				if(kStart >= 0 && vStart >= 0 && kEnd - kStart >= 4 && window.get(kStart) == 'n'
+						&& window.get(kStart + 1) == 'a' && window.get(kStart + 2) == 'm' && window.get(kStart + 3) == 'e') {
+					if(4 * numNameTags + 4 > nameTags.length)
+						nameTags = Arrays.copyOf(nameTags, nameTags.length * 2);
+					nameTags[4 * numNameTags] = kStart;
+					nameTags[4 * numNameTags + 1] = kEnd;
+					nameTags[4 * numNameTags + 2] = vStart;
+					nameTags[4 * numNameTags + 3] = vEnd;
+					numNameTags++;
+				}
+				return j + 1;
+			}
+			if(c != '"' && c != '\'') {
+				j++;
+				continue;
+			}
+			// An attribute value: find the attribute name before the '='
+			int n = j - 1;
+			while(window.get(n) != '=')
+				n--;
+			do
+				n--;
+			while(window.get(n) == ' ' || window.get(n) == '\n' || window.get(n) == '\t' || window.get(n) == '\r');
+			int start = j + 1;
+			j = start;
+			while(j < limit && window.get(j) != c)
+				j++;
+			if(j >= limit)
+				return -1;
+			byte a = window.get(n);
+			byte before = window.get(n - 1);
+			boolean single = before == ' ' || before == '\n' || before == '\t' || before == '\r';
+			if(single && a == 'k') {
+				kStart = start;
+				kEnd = j;
+			}
+			else if(single && a == 'v') {
+				vStart = start;
+				vEnd = j;
+			}
+			j++;
+		}
+		return -1;
+	}
+
+	/** Decodes an attribute value in the window. */
+	private String decode(int start, int end) throws IOException
+	{
+		int n = end - start;
+		if(n > scratch.length)
+			scratch = new byte[Math.max(n, 2 * scratch.length)];
+		for(int k = 0; k < n; k++)
+			scratch[k] = window.get(start + k);
+		return XmlPullReader.decodeValue(scratch, 0, n);
+	}
+}
@@ -0,0 +1,188 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.TimeZone;
+
+import org.xml.sax.Attributes;
+
+/**
+ * A map element (node, way or relation) as it is read from or written
+ * to a binary OSM file. Missing metadata is marked by -1 or null.
+ */
+public class OsmElement {
+
+	public static final int NODE = 0;
+	public static final int WAY = 1;
+	public static final int RELATION = 2;
+
+	static final String[] TYPE_NAMES = { "node", "way", "relation" };
+
+	final int type;
+	long id;
+
+	// Metadata
+	int version = -1;
+	long timestamp = -1; // milliseconds since 1970
+	long changeset = -1;
+	int uid = -1;
+	String user = null;
+	boolean visible = true;
+
+	// Coordinates of a node, in nanodegrees
+	long lat, lon;
+
+	// Tags as key/value pairs
+	String[] tags = new String[8];
+	int numTags = 0;
+
+	// Node references of a way
+	long[] refs = null;
+	int numRefs = 0;
+
+	// Members of a relation
+	int[] memberTypes = null;
+	long[] memberRefs = null;
+	String[] memberRoles = null;
+	int numMembers = 0;
+
+	public OsmElement(int type, long id)
+	{
+		this.type = type;
+		this.id = id;
+	}
+
+	public String getTypeName() {
+		return TYPE_NAMES[type];
+	}
+
+	public int getNumTags() {
+		return numTags;
+	}
+
+	public String getTagKey(int i) {
+		return tags[2 * i];
+	}
+
+	public String getTagValue(int i) {
+		return tags[2 * i + 1];
+	}
+
+	public void addTag(String key, String value)
+	{
+		if(2 * numTags + 2 > tags.length)
+			tags = Arrays.copyOf(tags, tags.length * 2);
+		tags[2 * numTags] = key;
+		tags[2 * numTags + 1] = value;
+		numTags++;
+	}
+
+	public void addRef(long ref)
+	{
+		if(refs == null)
+			refs = new long[16];
+		else if(numRefs == refs.length)
+			refs = Arrays.copyOf(refs, refs.length * 2);
+		refs[numRefs++] = ref;
+	}
+
+	public void addMember(int memberType, long ref, String role)
+	{
+		if(memberRefs == null) {
+			memberTypes = new int[4];
+			memberRefs = new long[4];
+			memberRoles = new String[4];
+		}
+		else if(numMembers == memberRefs.length) {
+			memberTypes = Arrays.copyOf(memberTypes, numMembers * 2);
+			memberRefs = Arrays.copyOf(memberRefs, numMembers * 2);
+			memberRoles = Arrays.copyOf(memberRoles, numMembers * 2);
+		}
+		memberTypes[numMembers] = memberType;
+		memberRefs[numMembers] = ref;
+		memberRoles[numMembers] = role;
+		numMembers++;
+	}
+
+	/** Returns the element type for a type name, or -1 if unknown. */
+	static int typeOf(String name)
+	{
+		for(int t = 0; t < TYPE_NAMES.length; t++) {
+			if(TYPE_NAMES[t].equals(name))
+				return t;
+		}
+		return -1;
+	}
+
+	// -------------------
+	// Parsing of coordinates and timestamps as in OSM XML files
+
+	private static final ThreadLocal<SimpleDateFormat> timestampFormat = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			SimpleDateFormat f = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+			f.setTimeZone(TimeZone.getTimeZone("UTC"));
+			return f;
+		}
+	};
+
+	/** Parses a coordinate in degrees. Returns nanodegrees. */
+	static long parseCoordinate(String degrees)
+	{
+		return Math.round(Double.parseDouble(degrees) * 1e9);
+	}
+
+	/** Parses an ISO 8601 timestamp in UTC. Returns milliseconds, or -1 if invalid. */
+	static long parseTimestamp(String timestamp)
+	{
+		try {
+			return timestampFormat.get().parse(timestamp).getTime();
+		}
+		catch(ParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Creates a map element from the attributes of its OSM XML start tag.
+	 * Returns null if the element name is not a map element.
+	 */
+	static OsmElement fromXml(String eName, Attributes attrs)
+	{
+		int type = typeOf(eName);
+		if(type < 0)
+			return null;
+		String v = attrs.getValue("id");
+		OsmElement e = new OsmElement(type, v == null ? 0 : Long.parseLong(v));
+		if((v = attrs.getValue("version")) != null)
+			e.version = Integer.parseInt(v);
+		if((v = attrs.getValue("timestamp")) != null)
+			e.timestamp = parseTimestamp(v);
+		if((v = attrs.getValue("changeset")) != null)
+			e.changeset = Long.parseLong(v);
+		if((v = attrs.getValue("uid")) != null)
+			e.uid = Integer.parseInt(v);
+		e.user = attrs.getValue("user");
+		if((v = attrs.getValue("visible")) != null)
+			e.visible = !v.equals("false");
+		if((v = attrs.getValue("lat")) != null)
+			e.lat = parseCoordinate(v);
+		if((v = attrs.getValue("lon")) != null)
+			e.lon = parseCoordinate(v);
+		return e;
+	}
+}
@@ -0,0 +1,137 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes gzip compressed data, compressing on a pool of worker threads.
+ * The data is split into chunks which are compressed independently and
+ * written as consecutive gzip members, like pigz does. Any gzip reader
+ * decompresses the result as a whole.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+	static final int CHUNK_SIZE = 1 << 20;
+
+	private final OutputStream out;
+	private final int threads;
+	private final ExecutorService pool;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+	private byte[] chunk = new byte[CHUNK_SIZE];
+	private int len = 0;
+	private boolean closed = false;
+
+	public ParallelGzipOutputStream(OutputStream out, int threads)
+	{
+		this.out = out;
+		this.threads = Math.max(1, threads);
+		this.pool = DaemonThreads.newFixedThreadPool(this.threads, "gzip");
+	}
+
+	@Override
+	public void write(int b) throws IOException
+	{
+		if(len == chunk.length)
+			submitChunk();
+		chunk[len++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int n) throws IOException
+	{
+		while(n > 0) {
+			if(len == chunk.length)
+				submitChunk();
+			int k = Math.min(n, chunk.length - len);
+			System.arraycopy(b, off, chunk, len, k);
+			len += k;
+			off += k;
+			n -= k;
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		if(closed)
+			return;
+		closed = true;
+		try {
+			if(len > 0)
+				submitChunk();
+			while(!pending.isEmpty())
+				writeNext();
+		}
+		finally {
+			pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	/** Stops the workers and closes the output without writing the remaining data, after a failure. */
+	public void abort() throws IOException
+	{
+		if(closed)
+			return;
+		closed = true;
+		pending.clear();
+		pool.shutdownNow();
+		out.close();
+	}
+
+	private void submitChunk() throws IOException
+	{
+		final byte[] data = chunk;
+		final int n = len;
+		chunk = new byte[CHUNK_SIZE];
+		len = 0;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream bos = new ByteArrayOutputStream(n / 4 + 64);
+				GZIPOutputStream gz = new GZIPOutputStream(bos, 1 << 16);
+				gz.write(data, 0, n);
+				gz.close();
+				return bos.toByteArray();
+			}
+		}));
+		// Limit the number of chunks held in memory
+		while(pending.size() >= 2 * threads)
+			writeNext();
+	}
+
+	private void writeNext() throws IOException
+	{
+		try {
+			out.write(pending.poll().get());
+		}
+		catch(InterruptedException e) {
+			throw new IOException("interrupted while compressing", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("error while compressing", e.getCause());
+		}
+	}
+}
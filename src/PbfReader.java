@@ -0,0 +1,507 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads map data files in the OSM PBF format.
+ * The file blobs are read sequentially, but inflated and decoded on a pool
+ * of worker threads. The decoded elements are passed to the handler
+ * in their original order, on the calling thread.
+ */
+public class PbfReader {
+
+	/** Receives the contents of a PBF file. */
+	public interface Handler {
+		/**
+		 * Called once before the first element.
+		 * @param bbox  bounding box (left, right, top, bottom) in nanodegrees, or null.
+		 */
+		void header(long[] bbox) throws IOException;
+		void element(OsmElement e) throws IOException;
+		void end() throws IOException;
+	}
+
+	static final int MAX_HEADER_SIZE = 64 * 1024;
+	static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+
+	static final String[] SUPPORTED_FEATURES = { "OsmSchema-V0.6", "DenseNodes" };
+
+	private final int threads;
+
+	public PbfReader(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	/** Reads the file and passes its contents to the handler. */
+	public void read(File file, Handler handler) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		ArrayDeque<Future<List<OsmElement>>> pending = new ArrayDeque<>();
+		boolean headerSeen = false;
+		try {
+			while(true) {
+				int headerSize;
+				try {
+					headerSize = in.readInt();
+				}
+				catch(EOFException e) {
+					break; // regular end of file
+				}
+				if(headerSize < 0 || headerSize > MAX_HEADER_SIZE)
+					throw new IOException("invalid blob header size " + headerSize);
+				byte[] header = new byte[headerSize];
+				in.readFully(header);
+
+				String type = null;
+				int dataSize = -1;
+				ProtoReader hr = new ProtoReader(header);
+				while(hr.hasMore()) {
+					int key = hr.readKey();
+					switch(ProtoReader.fieldOf(key)) {
+						case 1: type = hr.readString(); break;
+						case 3: dataSize = hr.readInt32(); break;
+						default: hr.skip(ProtoReader.wireTypeOf(key)); break;
+					}
+				}
+				if(dataSize < 0 || dataSize > MAX_BLOB_SIZE)
+					throw new IOException("invalid blob size " + dataSize);
+				final byte[] blob = new byte[dataSize];
+				in.readFully(blob);
+
+				if("OSMHeader".equals(type)) {
+					while(!pending.isEmpty())
+						deliver(pending.poll(), handler);
+					handler.header(decodeHeader(inflate(blob)));
+					headerSeen = true;
+				}
+				else if("OSMData".equals(type)) {
+					if(!headerSeen)
+						throw new IOException("missing OSMHeader block");
+					pending.add(pool.submit(new Callable<List<OsmElement>>() {
+						public List<OsmElement> call() throws IOException {
+							return decodeBlock(inflate(blob));
+						}
+					}));
+					// Limit the number of decoded blocks held in memory
+					if(pending.size() >= 2 * threads)
+						deliver(pending.poll(), handler);
+				}
+				// Unknown blob types are skipped, as required by the format.
+			}
+			while(!pending.isEmpty())
+				deliver(pending.poll(), handler);
+			handler.end();
+		}
+		finally {
+			pool.shutdownNow();
+			in.close();
+		}
+	}
+
+	private static void deliver(Future<List<OsmElement>> block, Handler handler) throws IOException
+	{
+		List<OsmElement> elems;
+		try {
+			elems = block.get();
+		}
+		catch(InterruptedException e) {
+			throw new IOException("interrupted while decoding", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new IOException("error while decoding", e.getCause());
+		}
+		for(OsmElement elem : elems)
+			handler.element(elem);
+	}
+
+	/** Returns the uncompressed contents of a blob. */
+	static byte[] inflate(byte[] blob) throws IOException
+	{
+		byte[] raw = null, zlib = null;
+		int rawSize = -1;
+		ProtoReader r = new ProtoReader(blob);
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: raw = r.readBytes(); break;
+				case 2: rawSize = r.readInt32(); break;
+				case 3: zlib = r.readBytes(); break;
+				case 4: throw new IOException("LZMA compressed blobs are not supported");
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+		if(raw != null)
+			return raw;
+		if(zlib == null)
+			throw new IOException("unsupported blob compression");
+		if(rawSize < 0 || rawSize > MAX_BLOB_SIZE)
+			throw new IOException("invalid raw blob size " + rawSize);
+
+		byte[] res = new byte[rawSize];
+		Inflater inf = new Inflater();
+		try {
+			inf.setInput(zlib);
+			int n = 0;
+			while(n < rawSize && !inf.finished()) {
+				int k = inf.inflate(res, n, rawSize - n);
+				if(k == 0 && (inf.needsInput() || inf.needsDictionary()))
+					break;
+				n += k;
+			}
+			if(n != rawSize)
+				throw new IOException("blob size mismatch");
+		}
+		catch(DataFormatException e) {
+			throw new IOException("corrupt blob", e);
+		}
+		finally {
+			inf.end();
+		}
+		return res;
+	}
+
+	/** Decodes a HeaderBlock. Returns the bounding box, if any. */
+	static long[] decodeHeader(byte[] data) throws IOException
+	{
+		long[] bbox = null;
+		ProtoReader r = new ProtoReader(data);
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1:
+					bbox = new long[4];
+					ProtoReader br = r.readMessage();
+					while(br.hasMore()) {
+						int bkey = br.readKey();
+						int f = ProtoReader.fieldOf(bkey);
+						if(f >= 1 && f <= 4)
+							bbox[f - 1] = br.readSInt64();
+						else
+							br.skip(ProtoReader.wireTypeOf(bkey));
+					}
+					break;
+				case 4:
+					String feature = r.readString();
+					if(!Arrays.asList(SUPPORTED_FEATURES).contains(feature))
+						throw new IOException("unsupported PBF feature: " + feature);
+					break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+		return bbox;
+	}
+
+	// -------------------
+	// PrimitiveBlock decoding
+
+	/** Block-wide parameters needed to decode the elements. */
+	private static class BlockContext {
+		String[] strings = new String[0];
+		int granularity = 100;
+		long latOffset = 0, lonOffset = 0;
+		int dateGranularity = 1000;
+	}
+
+	static List<OsmElement> decodeBlock(byte[] data) throws IOException
+	{
+		// The groups refer to the block parameters, which may come after them.
+		BlockContext ctx = new BlockContext();
+		List<ProtoReader> groups = new ArrayList<>();
+		ProtoReader r = new ProtoReader(data);
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: ctx.strings = decodeStringTable(r.readMessage()); break;
+				case 2: groups.add(r.readMessage()); break;
+				case 17: ctx.granularity = r.readInt32(); break;
+				case 18: ctx.dateGranularity = r.readInt32(); break;
+				case 19: ctx.latOffset = r.readVarint(); break;
+				case 20: ctx.lonOffset = r.readVarint(); break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+
+		List<OsmElement> res = new ArrayList<>();
+		for(ProtoReader g : groups) {
+			while(g.hasMore()) {
+				int key = g.readKey();
+				switch(ProtoReader.fieldOf(key)) {
+					case 1: res.add(decodeNode(g.readMessage(), ctx)); break;
+					case 2: decodeDenseNodes(g.readMessage(), ctx, res); break;
+					case 3: res.add(decodeWay(g.readMessage(), ctx)); break;
+					case 4: res.add(decodeRelation(g.readMessage(), ctx)); break;
+					default: g.skip(ProtoReader.wireTypeOf(key)); break;
+				}
+			}
+		}
+		return res;
+	}
+
+	private static String[] decodeStringTable(ProtoReader r) throws IOException
+	{
+		List<String> strings = new ArrayList<>();
+		while(r.hasMore()) {
+			int key = r.readKey();
+			if(ProtoReader.fieldOf(key) == 1)
+				strings.add(r.readString());
+			else
+				r.skip(ProtoReader.wireTypeOf(key));
+		}
+		return strings.toArray(new String[strings.size()]);
+	}
+
+	private static String string(BlockContext ctx, long index) throws IOException
+	{
+		if(index < 0 || index >= ctx.strings.length)
+			throw new IOException("invalid string table index " + index);
+		return ctx.strings[(int)index];
+	}
+
+	/** Values of a repeated varint field. */
+	private static class Values {
+		long[] v = new long[16];
+		int n = 0;
+
+		void add(long value) {
+			if(n == v.length)
+				v = Arrays.copyOf(v, n * 2);
+			v[n++] = value;
+		}
+	}
+
+	/** Reads a repeated varint field, which may be packed or not. */
+	private static Values readVarints(ProtoReader r, int key, Values prev) throws IOException
+	{
+		Values res = prev == null ? new Values() : prev;
+		if(ProtoReader.wireTypeOf(key) == ProtoReader.WIRE_LENGTH) {
+			ProtoReader p = r.readMessage();
+			while(p.hasMore())
+				res.add(p.readVarint());
+		}
+		else
+			res.add(r.readVarint());
+		return res;
+	}
+
+	private static int count(Values values) {
+		return values == null ? 0 : values.n;
+	}
+
+	private static long zigzag(long v) {
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	private static void decodeInfo(ProtoReader r, BlockContext ctx, OsmElement e) throws IOException
+	{
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: e.version = r.readInt32(); break;
+				case 2: e.timestamp = r.readVarint() * ctx.dateGranularity; break;
+				case 3: e.changeset = r.readVarint(); break;
+				case 4: e.uid = r.readInt32(); break;
+				case 5: e.user = string(ctx, r.readVarint()); break;
+				case 6: e.visible = r.readVarint() != 0; break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+	}
+
+	private static void addTags(OsmElement e, Values keys, Values vals, BlockContext ctx) throws IOException
+	{
+		int n = count(keys);
+		if(n != count(vals))
+			throw new IOException("tag keys and values do not match");
+		for(int i = 0; i < n; i++)
+			e.addTag(string(ctx, keys.v[i]), string(ctx, vals.v[i]));
+	}
+
+	private static OsmElement decodeNode(ProtoReader r, BlockContext ctx) throws IOException
+	{
+		OsmElement e = new OsmElement(OsmElement.NODE, 0);
+		Values keys = null, vals = null;
+		long lat = 0, lon = 0;
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: e.id = r.readSInt64(); break;
+				case 2: keys = readVarints(r, key, keys); break;
+				case 3: vals = readVarints(r, key, vals); break;
+				case 4: decodeInfo(r.readMessage(), ctx, e); break;
+				case 8: lat = r.readSInt64(); break;
+				case 9: lon = r.readSInt64(); break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+		e.lat = ctx.latOffset + ctx.granularity * lat;
+		e.lon = ctx.lonOffset + ctx.granularity * lon;
+		addTags(e, keys, vals, ctx);
+		return e;
+	}
+
+	private static void decodeDenseNodes(ProtoReader r, BlockContext ctx, List<OsmElement> res) throws IOException
+	{
+		Values ids = null, lats = null, lons = null, keysVals = null;
+		Values versions = null, timestamps = null, changesets = null, uids = null, users = null, visibles = null;
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: ids = readVarints(r, key, ids); break;
+				case 5:
+					ProtoReader ir = r.readMessage();
+					while(ir.hasMore()) {
+						int ikey = ir.readKey();
+						switch(ProtoReader.fieldOf(ikey)) {
+							case 1: versions = readVarints(ir, ikey, versions); break;
+							case 2: timestamps = readVarints(ir, ikey, timestamps); break;
+							case 3: changesets = readVarints(ir, ikey, changesets); break;
+							case 4: uids = readVarints(ir, ikey, uids); break;
+							case 5: users = readVarints(ir, ikey, users); break;
+							case 6: visibles = readVarints(ir, ikey, visibles); break;
+							default: ir.skip(ProtoReader.wireTypeOf(ikey)); break;
+						}
+					}
+					break;
+				case 8: lats = readVarints(r, key, lats); break;
+				case 9: lons = readVarints(r, key, lons); break;
+				case 10: keysVals = readVarints(r, key, keysVals); break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+
+		int n = count(ids);
+		if(count(lats) != n || count(lons) != n)
+			throw new IOException("inconsistent dense nodes");
+		boolean hasInfo = count(versions) == n && n > 0;
+		int kv = 0, numKeysVals = count(keysVals);
+		long id = 0, lat = 0, lon = 0, timestamp = 0, changeset = 0, uid = 0, user = 0;
+		for(int i = 0; i < n; i++) {
+			id += zigzag(ids.v[i]);
+			lat += zigzag(lats.v[i]);
+			lon += zigzag(lons.v[i]);
+			OsmElement e = new OsmElement(OsmElement.NODE, id);
+			e.lat = ctx.latOffset + ctx.granularity * lat;
+			e.lon = ctx.lonOffset + ctx.granularity * lon;
+			if(hasInfo) {
+				e.version = (int)versions.v[i];
+				if(count(timestamps) == n) {
+					timestamp += zigzag(timestamps.v[i]);
+					e.timestamp = timestamp * ctx.dateGranularity;
+				}
+				if(count(changesets) == n) {
+					changeset += zigzag(changesets.v[i]);
+					e.changeset = changeset;
+				}
+				if(count(uids) == n) {
+					uid += zigzag(uids.v[i]);
+					e.uid = (int)uid;
+				}
+				if(count(users) == n) {
+					user += zigzag(users.v[i]);
+					e.user = string(ctx, user);
+				}
+				if(count(visibles) == n)
+					e.visible = visibles.v[i] != 0;
+			}
+			// Tags of all nodes, each node terminated by a 0 key
+			while(kv < numKeysVals) {
+				long k = keysVals.v[kv++];
+				if(k == 0)
+					break;
+				if(kv >= numKeysVals)
+					throw new IOException("inconsistent dense node tags");
+				e.addTag(string(ctx, k), string(ctx, keysVals.v[kv++]));
+			}
+			res.add(e);
+		}
+	}
+
+	private static OsmElement decodeWay(ProtoReader r, BlockContext ctx) throws IOException
+	{
+		OsmElement e = new OsmElement(OsmElement.WAY, 0);
+		Values keys = null, vals = null, refs = null;
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: e.id = r.readVarint(); break;
+				case 2: keys = readVarints(r, key, keys); break;
+				case 3: vals = readVarints(r, key, vals); break;
+				case 4: decodeInfo(r.readMessage(), ctx, e); break;
+				case 8: refs = readVarints(r, key, refs); break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+		addTags(e, keys, vals, ctx);
+		long ref = 0;
+		for(int i = 0, n = count(refs); i < n; i++) {
+			ref += zigzag(refs.v[i]);
+			e.addRef(ref);
+		}
+		return e;
+	}
+
+	private static OsmElement decodeRelation(ProtoReader r, BlockContext ctx) throws IOException
+	{
+		OsmElement e = new OsmElement(OsmElement.RELATION, 0);
+		Values keys = null, vals = null, roles = null, memids = null, types = null;
+		while(r.hasMore()) {
+			int key = r.readKey();
+			switch(ProtoReader.fieldOf(key)) {
+				case 1: e.id = r.readVarint(); break;
+				case 2: keys = readVarints(r, key, keys); break;
+				case 3: vals = readVarints(r, key, vals); break;
+				case 4: decodeInfo(r.readMessage(), ctx, e); break;
+				case 8: roles = readVarints(r, key, roles); break;
+				case 9: memids = readVarints(r, key, memids); break;
+				case 10: types = readVarints(r, key, types); break;
+				default: r.skip(ProtoReader.wireTypeOf(key)); break;
+			}
+		}
+		addTags(e, keys, vals, ctx);
+		int n = count(memids);
+		if(count(roles) != n || count(types) != n)
+			throw new IOException("inconsistent relation members");
+		long ref = 0;
+		for(int i = 0; i < n; i++) {
+			ref += zigzag(memids.v[i]);
+			int t = (int)types.v[i];
+			if(t < OsmElement.NODE || t > OsmElement.RELATION)
+				throw new IOException("invalid member type " + t);
+			e.addMember(t, ref, string(ctx, roles.v[i]));
+		}
+		return e;
+	}
+}
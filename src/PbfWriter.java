@@ -0,0 +1,405 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Writes map data files in the OSM PBF format.
+ * The elements are collected into primitive blocks, which are encoded and
+ * deflated on a pool of worker threads. The blocks are written in their
+ * original order.
+ */
+public class PbfWriter {
+
+	static final int BLOCK_SIZE = 8000;
+	static final int GRANULARITY = 100;
+	static final int DATE_GRANULARITY = 1000;
+
+	private final OutputStream out;
+	private final int threads;
+	private final ExecutorService pool;
+	private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+	private List<OsmElement> block = new ArrayList<>(BLOCK_SIZE);
+	private boolean headerWritten = false;
+
+	public PbfWriter(OutputStream out, int threads)
+	{
+		this.out = out;
+		this.threads = Math.max(1, threads);
+		this.pool = DaemonThreads.newFixedThreadPool(this.threads, "pbf writer");
+	}
+
+	/**
+	 * Writes the file header. Must be called before the first element.
+	 * @param bbox  bounding box (left, right, top, bottom) in nanodegrees, or null.
+	 */
+	public void writeHeader(long[] bbox) throws IOException
+	{
+		if(headerWritten)
+			throw new IOException("PBF header written twice");
+		ProtoWriter h = new ProtoWriter();
+		if(bbox != null) {
+			ProtoWriter b = new ProtoWriter();
+			for(int i = 0; i < 4; i++)
+				b.writeSInt(i + 1, bbox[i]);
+			h.writeMessage(1, b);
+		}
+		h.writeString(4, "OsmSchema-V0.6");
+		h.writeString(4, "DenseNodes");
+		h.writeString(16, "JapanMapTranslate " + JapanMapTranslate.VERSION);
+		out.write(encodeBlob("OSMHeader", h));
+		headerWritten = true;
+	}
+
+	public void write(OsmElement e) throws IOException
+	{
+		if(!headerWritten)
+			writeHeader(null);
+		block.add(e);
+		if(block.size() >= BLOCK_SIZE)
+			submitBlock();
+	}
+
+	/** Writes the remaining elements and closes the output. */
+	public void close() throws IOException
+	{
+		try {
+			if(!headerWritten)
+				writeHeader(null);
+			if(!block.isEmpty())
+				submitBlock();
+			while(!pending.isEmpty())
+				writeNext();
+		}
+		finally {
+			pool.shutdownNow();
+			out.close();
+		}
+	}
+
+	/** Stops the workers and closes the output without writing the remaining elements, after a failure. */
+	public void abort() throws IOException
+	{
+		pending.clear();
+		pool.shutdownNow();
+		out.close();
+	}
+
+	private void submitBlock() throws IOException
+	{
+		final List<OsmElement> elems = block;
+		block = new ArrayList<>(BLOCK_SIZE);
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return encodeBlob("OSMData", encodeBlock(elems));
+			}
+		}));
+		// Limit the number of encoded blocks held in memory
+		while(pending.size() >= 2 * threads)
+			writeNext();
+	}
+
+	private void writeNext() throws IOException
+	{
+		try {
+			out.write(pending.poll().get());
+		}
+		catch(InterruptedException e) {
+			throw new IOException("interrupted while encoding", e);
+		}
+		catch(ExecutionException e) {
+			throw new IOException("error while encoding", e.getCause());
+		}
+	}
+
+	/** Deflates a block and returns it as a complete file blob, including its length and header. */
+	static byte[] encodeBlob(String type, ProtoWriter data)
+	{
+		byte[] raw = data.toByteArray();
+		Deflater def = new Deflater();
+		byte[] zlib;
+		try {
+			def.setInput(raw);
+			def.finish();
+			byte[] buf = new byte[raw.length + raw.length / 100 + 64];
+			int n = 0;
+			while(!def.finished()) {
+				if(n == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				n += def.deflate(buf, n, buf.length - n);
+			}
+			zlib = Arrays.copyOf(buf, n);
+		}
+		finally {
+			def.end();
+		}
+
+		ProtoWriter blob = new ProtoWriter(zlib.length + 16);
+		blob.writeInt(2, raw.length);
+		blob.writeBytes(3, zlib);
+		ProtoWriter header = new ProtoWriter();
+		header.writeString(1, type);
+		header.writeInt(3, blob.size());
+
+		int hlen = header.size();
+		byte[] res = new byte[4 + hlen + blob.size()];
+		res[0] = (byte)(hlen >>> 24);
+		res[1] = (byte)(hlen >>> 16);
+		res[2] = (byte)(hlen >>> 8);
+		res[3] = (byte)hlen;
+		System.arraycopy(header.toByteArray(), 0, res, 4, hlen);
+		System.arraycopy(blob.toByteArray(), 0, res, 4 + hlen, blob.size());
+		return res;
+	}
+
+	// -------------------
+	// PrimitiveBlock encoding
+
+	/** Builds a PrimitiveBlock. Consecutive elements of the same type form a group. */
+	static ProtoWriter encodeBlock(List<OsmElement> elems)
+	{
+		Map<String, Integer> strings = buildStringTable(elems);
+		ProtoWriter res = new ProtoWriter(64 * 1024);
+
+		ProtoWriter st = new ProtoWriter(16 * 1024);
+		String[] byIndex = new String[strings.size()];
+		for(Map.Entry<String, Integer> s : strings.entrySet())
+			byIndex[s.getValue()] = s.getKey();
+		for(String s : byIndex)
+			st.writeString(1, s);
+		res.writeMessage(1, st);
+
+		ProtoWriter group = new ProtoWriter(64 * 1024);
+		int start = 0;
+		while(start < elems.size()) {
+			int type = elems.get(start).type;
+			int end = start;
+			while(end < elems.size() && elems.get(end).type == type)
+				end++;
+			group.reset();
+			if(type == OsmElement.NODE)
+				encodeDenseNodes(elems.subList(start, end), strings, group);
+			else {
+				for(OsmElement e : elems.subList(start, end)) {
+					if(type == OsmElement.WAY)
+						group.writeMessage(3, encodeWay(e, strings));
+					else
+						group.writeMessage(4, encodeRelation(e, strings));
+				}
+			}
+			res.writeMessage(2, group);
+			start = end;
+		}
+		res.writeInt(17, GRANULARITY);
+		res.writeInt(18, DATE_GRANULARITY);
+		return res;
+	}
+
+	/** Assigns string table indices; the most frequent strings get the smallest ones. */
+	private static Map<String, Integer> buildStringTable(List<OsmElement> elems)
+	{
+		final Map<String, Integer> counts = new HashMap<>();
+		for(OsmElement e : elems) {
+			count(counts, e.user);
+			for(int i = 0; i < 2 * e.numTags; i++)
+				count(counts, e.tags[i]);
+			for(int i = 0; i < e.numMembers; i++)
+				count(counts, e.memberRoles[i]);
+		}
+		List<String> sorted = new ArrayList<>(counts.keySet());
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b) {
+				return counts.get(b).compareTo(counts.get(a));
+			}
+		});
+		Map<String, Integer> res = new HashMap<>();
+		res.put("", 0); // index 0 is reserved as delimiter
+		for(String s : sorted) {
+			if(!res.containsKey(s))
+				res.put(s, res.size());
+		}
+		return res;
+	}
+
+	private static void count(Map<String, Integer> counts, String s)
+	{
+		if(s == null)
+			return;
+		Integer c = counts.get(s);
+		counts.put(s, c == null ? 1 : c + 1);
+	}
+
+	private static long toUnits(long nano) {
+		return (nano >= 0 ? nano + GRANULARITY / 2 : nano - GRANULARITY / 2) / GRANULARITY;
+	}
+
+	private static int index(Map<String, Integer> strings, String s) {
+		return s == null ? 0 : strings.get(s);
+	}
+
+	private static void encodeDenseNodes(List<OsmElement> nodes, Map<String, Integer> strings, ProtoWriter group)
+	{
+		boolean hasInfo = true;
+		boolean hasVisible = false;
+		for(OsmElement e : nodes) {
+			hasInfo &= e.version >= 0;
+			hasVisible |= !e.visible;
+		}
+		// The visible flags are only written for history data, which has versions
+		hasVisible &= hasInfo;
+
+		ProtoWriter ids = new ProtoWriter(), lats = new ProtoWriter(), lons = new ProtoWriter(), keysVals = new ProtoWriter();
+		ProtoWriter versions = new ProtoWriter(), timestamps = new ProtoWriter(), changesets = new ProtoWriter();
+		ProtoWriter uids = new ProtoWriter(), users = new ProtoWriter(), visibles = new ProtoWriter();
+		long id = 0, lat = 0, lon = 0, timestamp = 0, changeset = 0, uid = 0, user = 0;
+		boolean hasTags = false;
+		for(OsmElement e : nodes) {
+			ids.writeVarint(ProtoWriter.zigzag(e.id - id));
+			id = e.id;
+			long l = toUnits(e.lat);
+			lats.writeVarint(ProtoWriter.zigzag(l - lat));
+			lat = l;
+			l = toUnits(e.lon);
+			lons.writeVarint(ProtoWriter.zigzag(l - lon));
+			lon = l;
+			for(int i = 0; i < e.numTags; i++) {
+				// An empty key would have index 0, the end of the tags of the node
+				String k = e.tags[2 * i];
+				if(k == null || k.isEmpty())
+					continue;
+				keysVals.writeVarint(strings.get(k));
+				keysVals.writeVarint(index(strings, e.tags[2 * i + 1]));
+				hasTags = true;
+			}
+			keysVals.writeVarint(0);
+			if(hasInfo) {
+				versions.writeVarint(e.version);
+				long t = Math.max(0, e.timestamp) / DATE_GRANULARITY;
+				timestamps.writeVarint(ProtoWriter.zigzag(t - timestamp));
+				timestamp = t;
+				long c = Math.max(0, e.changeset);
+				changesets.writeVarint(ProtoWriter.zigzag(c - changeset));
+				changeset = c;
+				long u = Math.max(0, e.uid);
+				uids.writeVarint(ProtoWriter.zigzag(u - uid));
+				uid = u;
+				long s = index(strings, e.user);
+				users.writeVarint(ProtoWriter.zigzag(s - user));
+				user = s;
+				if(hasVisible)
+					visibles.writeVarint(e.visible ? 1 : 0);
+			}
+		}
+
+		ProtoWriter dense = new ProtoWriter(ids.size() + lats.size() + lons.size() + keysVals.size() + 64);
+		dense.writeMessage(1, ids);
+		if(hasInfo) {
+			ProtoWriter info = new ProtoWriter();
+			info.writeMessage(1, versions);
+			info.writeMessage(2, timestamps);
+			info.writeMessage(3, changesets);
+			info.writeMessage(4, uids);
+			info.writeMessage(5, users);
+			if(hasVisible)
+				info.writeMessage(6, visibles);
+			dense.writeMessage(5, info);
+		}
+		dense.writeMessage(8, lats);
+		dense.writeMessage(9, lons);
+		if(hasTags)
+			dense.writeMessage(10, keysVals);
+		group.writeMessage(2, dense);
+	}
+
+	private static void encodeCommon(OsmElement e, Map<String, Integer> strings, ProtoWriter res)
+	{
+		res.writeInt(1, e.id);
+		if(e.numTags > 0) {
+			ProtoWriter keys = new ProtoWriter(), vals = new ProtoWriter();
+			for(int i = 0; i < e.numTags; i++) {
+				keys.writeVarint(index(strings, e.tags[2 * i]));
+				vals.writeVarint(index(strings, e.tags[2 * i + 1]));
+			}
+			res.writeMessage(2, keys);
+			res.writeMessage(3, vals);
+		}
+		if(e.version >= 0) {
+			ProtoWriter info = new ProtoWriter();
+			info.writeInt(1, e.version);
+			if(e.timestamp >= 0)
+				info.writeInt(2, e.timestamp / DATE_GRANULARITY);
+			if(e.changeset >= 0)
+				info.writeInt(3, e.changeset);
+			if(e.uid >= 0)
+				info.writeInt(4, e.uid);
+			if(e.user != null)
+				info.writeInt(5, index(strings, e.user));
+			if(!e.visible)
+				info.writeInt(6, 0);
+			res.writeMessage(4, info);
+		}
+	}
+
+	private static ProtoWriter encodeWay(OsmElement e, Map<String, Integer> strings)
+	{
+		ProtoWriter res = new ProtoWriter();
+		encodeCommon(e, strings, res);
+		if(e.numRefs > 0) {
+			ProtoWriter refs = new ProtoWriter();
+			long ref = 0;
+			for(int i = 0; i < e.numRefs; i++) {
+				refs.writeVarint(ProtoWriter.zigzag(e.refs[i] - ref));
+				ref = e.refs[i];
+			}
+			res.writeMessage(8, refs);
+		}
+		return res;
+	}
+
+	private static ProtoWriter encodeRelation(OsmElement e, Map<String, Integer> strings)
+	{
+		ProtoWriter res = new ProtoWriter();
+		encodeCommon(e, strings, res);
+		if(e.numMembers > 0) {
+			ProtoWriter roles = new ProtoWriter(), memids = new ProtoWriter(), types = new ProtoWriter();
+			long ref = 0;
+			for(int i = 0; i < e.numMembers; i++) {
+				roles.writeVarint(index(strings, e.memberRoles[i]));
+				memids.writeVarint(ProtoWriter.zigzag(e.memberRefs[i] - ref));
+				ref = e.memberRefs[i];
+				types.writeVarint(e.memberTypes[i]);
+			}
+			res.writeMessage(8, roles);
+			res.writeMessage(9, memids);
+			res.writeMessage(10, types);
+		}
+		return res;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * Minimal reader for the protocol buffer wire format, as far as it is needed
+ * for the OSM PBF format. Works directly on a byte array; nested messages and
+ * packed fields are read through sub-readers on the same array.
+ */
+class ProtoReader {
+
+	static final int WIRE_VARINT = 0;
+	static final int WIRE_FIXED64 = 1;
+	static final int WIRE_LENGTH = 2;
+	static final int WIRE_FIXED32 = 5;
+
+	static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final byte[] buf;
+	private int pos;
+	private final int end;
+
+	ProtoReader(byte[] buf)
+	{
+		this(buf, 0, buf.length);
+	}
+
+	ProtoReader(byte[] buf, int offset, int length)
+	{
+		this.buf = buf;
+		this.pos = offset;
+		this.end = offset + length;
+	}
+
+	boolean hasMore() {
+		return pos < end;
+	}
+
+	/** Reads the key of the next field. Use fieldOf and wireTypeOf to decode it. */
+	int readKey() throws IOException {
+		return (int)readVarint();
+	}
+
+	static int fieldOf(int key) {
+		return key >>> 3;
+	}
+
+	static int wireTypeOf(int key) {
+		return key & 7;
+	}
+
+	long readVarint() throws IOException {
+		long result = 0;
+		for(int shift = 0; shift < 64; shift += 7) {
+			if(pos >= end)
+				throw new IOException("truncated protocol buffer message");
+			byte b = buf[pos++];
+			result |= (long)(b & 0x7f) << shift;
+			if(b >= 0)
+				return result;
+		}
+		throw new IOException("malformed varint");
+	}
+
+	int readInt32() throws IOException {
+		return (int)readVarint();
+	}
+
+	long readSInt64() throws IOException {
+		long v = readVarint();
+		return (v >>> 1) ^ -(v & 1);
+	}
+
+	int readSInt32() throws IOException {
+		return (int)readSInt64();
+	}
+
+	private int readLength() throws IOException {
+		int len = readInt32();
+		if(len < 0 || len > end - pos)
+			throw new IOException("invalid length in protocol buffer message");
+		return len;
+	}
+
+	/** Reads a length-delimited field (nested message or packed field) as a sub-reader. */
+	ProtoReader readMessage() throws IOException {
+		int len = readLength();
+		ProtoReader r = new ProtoReader(buf, pos, len);
+		pos += len;
+		return r;
+	}
+
+	byte[] readBytes() throws IOException {
+		int len = readLength();
+		byte[] res = new byte[len];
+		System.arraycopy(buf, pos, res, 0, len);
+		pos += len;
+		return res;
+	}
+
+	String readString() throws IOException {
+		int len = readLength();
+		String res = new String(buf, pos, len, UTF8);
+		pos += len;
+		return res;
+	}
+
+	/** Skips the value of a field with the given wire type. */
+	void skip(int wireType) throws IOException {
+		switch(wireType) {
+			case WIRE_VARINT: readVarint(); break;
+			case WIRE_FIXED64: skipBytes(8); break;
+			case WIRE_LENGTH: skipBytes(readLength()); break;
+			case WIRE_FIXED32: skipBytes(4); break;
+			default: throw new IOException("unsupported wire type " + wireType);
+		}
+	}
+
+	private void skipBytes(int n) throws IOException {
+		if(n > end - pos)
+			throw new IOException("truncated protocol buffer message");
+		pos += n;
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Minimal writer for the protocol buffer wire format, the counterpart of
+ * ProtoReader. The message is built in a growing byte array.
+ */
+class ProtoWriter {
+
+	private byte[] buf;
+	private int len = 0;
+
+	ProtoWriter()
+	{
+		this(256);
+	}
+
+	ProtoWriter(int capacity)
+	{
+		buf = new byte[capacity];
+	}
+
+	int size() {
+		return len;
+	}
+
+	void reset() {
+		len = 0;
+	}
+
+	byte[] toByteArray() {
+		return Arrays.copyOf(buf, len);
+	}
+
+	private void ensure(int n) {
+		if(len + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+	}
+
+	void writeVarint(long v) {
+		ensure(10);
+		while((v & ~0x7fL) != 0) {
+			buf[len++] = (byte)((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[len++] = (byte)v;
+	}
+
+	static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	void writeKey(int field, int wireType) {
+		writeVarint((field << 3) | wireType);
+	}
+
+	/** Writes an int32, int64, uint32, uint64, bool or enum field. */
+	void writeInt(int field, long v) {
+		writeKey(field, ProtoReader.WIRE_VARINT);
+		writeVarint(v);
+	}
+
+	/** Writes a sint32 or sint64 field. */
+	void writeSInt(int field, long v) {
+		writeInt(field, zigzag(v));
+	}
+
+	void writeBytes(int field, byte[] b, int off, int n) {
+		writeKey(field, ProtoReader.WIRE_LENGTH);
+		writeVarint(n);
+		ensure(n);
+		System.arraycopy(b, off, buf, len, n);
+		len += n;
+	}
+
+	void writeBytes(int field, byte[] b) {
+		writeBytes(field, b, 0, b.length);
+	}
+
+	void writeString(int field, String s) {
+		writeBytes(field, s.getBytes(ProtoReader.UTF8));
+	}
+
+	/** Writes a nested message, or the contents of a packed field. */
+	void writeMessage(int field, ProtoWriter msg) {
+		writeBytes(field, msg.buf, 0, msg.len);
+	}
+}
@@ -0,0 +1,139 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads another input stream on a background thread, in chunks.
+ * Used to decompress a gzip file while the previous chunks are parsed.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+	static final int CHUNK_SIZE = 1 << 20;
+	static final int QUEUE_SIZE = 4;
+
+	// Marks the end of the data in the chunk queue
+	private static final byte[] END = new byte[0];
+
+	private final InputStream in;
+	private final BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private final Thread reader;
+	private volatile Throwable readError = null;
+
+	private byte[] current = new byte[0];
+	private int pos = 0;
+	private boolean eof = false;
+
+	public ReadAheadInputStream(InputStream in)
+	{
+		this.in = in;
+		reader = new Thread(new Runnable() {
+			public void run() {
+				readChunks();
+			}
+		}, "read-ahead");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	private void readChunks()
+	{
+		try {
+			while(true) {
+				byte[] chunk = new byte[CHUNK_SIZE];
+				int n = 0;
+				while(n < chunk.length) {
+					int k = in.read(chunk, n, chunk.length - n);
+					if(k < 0)
+						break;
+					n += k;
+				}
+				if(n > 0)
+					chunks.put(n == chunk.length ? chunk : Arrays.copyOf(chunk, n));
+				if(n < chunk.length)
+					break;
+			}
+		}
+		catch(InterruptedException e) {
+			return; // closed
+		}
+		catch(Throwable t) {
+			// e.g. a RuntimeException of the decompressor; passed on to the reader
+			readError = t;
+		}
+		try {
+			chunks.put(END);
+		}
+		catch(InterruptedException e) {
+			// closed
+		}
+	}
+
+	/** Waits for the next chunk. Returns false at the end of the data. */
+	private boolean nextChunk() throws IOException
+	{
+		if(eof)
+			return false;
+		try {
+			current = chunks.take();
+		}
+		catch(InterruptedException e) {
+			throw new IOException("interrupted while reading", e);
+		}
+		pos = 0;
+		if(current == END) {
+			eof = true;
+			if(readError instanceof IOException)
+				throw (IOException)readError;
+			if(readError != null)
+				throw new IOException("error while reading", readError);
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException
+	{
+		if(pos >= current.length && !nextChunk())
+			return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if(len == 0)
+			return 0;
+		if(pos >= current.length && !nextChunk())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		eof = true;
+		reader.interrupt();
+		in.close();
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A list of search strings compiled into a trie, for the replacements of a
+ * TranslationList. The strings are found by walking the trie over the text,
+ * so the cost of a lookup does not depend on the number of strings.
+ * <p>
+ * A forward trie replaces strings anywhere, as an Aho-Corasick automaton, or
+ * at the start of a text; a reverse trie, which stores the strings reversed,
+ * replaces them at the end. The results are the same as those of
+ * StringUtils.replaceEach and of replacing the strings one after another at
+ * the start or end, as the translation list did before.
+ * <p>
+ * The trie is stored in arrays, indexed by node or by edge, which are written
+ * to the compiled form of the translation list.
+ */
+class SearchTrie {
+
+	private final boolean reverse;
+	private final int[] lengths;   // per search string
+	private final int maxLength;
+
+	// Per node; the root is node 0. edges and found have an extra element
+	// for the end of the last node.
+	private final int[] edges;      // the index of its first edge
+	private final int[] depth;
+	private final int[] found;      // the index of its first search string in foundIndices
+	private final int[] fail;       // the node of the longest proper suffix
+	private final int[] foundLink;  // the next node on the fail chain with search strings, or 0
+	// Per edge, sorted by character for each node
+	private final char[] labels;
+	private final int[] children;
+	// The indices of the search strings ending at each node, ascending
+	private final int[] foundIndices;
+
+	/** Compiles the search strings, which must not be empty. */
+	SearchTrie(String[] search, boolean reverse)
+	{
+		this.reverse = reverse;
+		lengths = new int[search.length];
+		List<TreeMap<Character, Integer>> edgeMaps = new ArrayList<TreeMap<Character, Integer>>();
+		List<List<Integer>> ends = new ArrayList<List<Integer>>();
+		edgeMaps.add(new TreeMap<Character, Integer>());
+		ends.add(null);
+		int max = 0;
+		int numEdges = 0;
+		for(int i = 0; i < search.length; i++) {
+			String s = search[i];
+			lengths[i] = s.length();
+			max = Math.max(max, s.length());
+			int node = 0;
+			for(int k = 0; k < s.length(); k++) {
+				Character c = s.charAt(reverse ? s.length() - 1 - k : k);
+				Integer child = edgeMaps.get(node).get(c);
+				if(child == null) {
+					child = edgeMaps.size();
+					edgeMaps.get(node).put(c, child);
+					edgeMaps.add(new TreeMap<Character, Integer>());
+					ends.add(null);
+					numEdges++;
+				}
+				node = child;
+			}
+			if(ends.get(node) == null)
+				ends.set(node, new ArrayList<Integer>());
+			ends.get(node).add(i);
+		}
+		maxLength = max;
+
+		int n = edgeMaps.size();
+		edges = new int[n + 1];
+		depth = new int[n];
+		found = new int[n + 1];
+		labels = new char[numEdges];
+		children = new int[numEdges];
+		foundIndices = new int[search.length];
+		int e = 0, f = 0;
+		for(int node = 0; node < n; node++) {
+			edges[node] = e;
+			for(Map.Entry<Character, Integer> edge : edgeMaps.get(node).entrySet()) {
+				labels[e] = edge.getKey();
+				children[e++] = edge.getValue();
+				depth[edge.getValue()] = depth[node] + 1;
+			}
+			found[node] = f;
+			if(ends.get(node) != null) {
+				for(int index : ends.get(node))
+					foundIndices[f++] = index;
+			}
+		}
+		edges[n] = e;
+		found[n] = f;
+
+		// Failure links, in breadth-first order
+		fail = new int[n];
+		foundLink = new int[n];
+		int[] queue = new int[n];
+		int head = 0, tail = 0;
+		queue[tail++] = 0;
+		while(head < tail) {
+			int node = queue[head++];
+			for(e = edges[node]; e < edges[node + 1]; e++) {
+				int child = children[e];
+				int link = 0;
+				if(node != 0)
+					link = step(fail[node], labels[e]);
+				fail[child] = link;
+				foundLink[child] = hasFound(link) ? link : foundLink[link];
+				queue[tail++] = child;
+			}
+		}
+	}
+
+	/** Reads a trie written by write(). */
+	SearchTrie(ByteBuffer in)
+	{
+		reverse = in.get() != 0;
+		maxLength = in.getInt();
+		lengths = CompiledDictionary.readInts(in);
+		edges = CompiledDictionary.readInts(in);
+		depth = CompiledDictionary.readInts(in);
+		found = CompiledDictionary.readInts(in);
+		fail = CompiledDictionary.readInts(in);
+		foundLink = CompiledDictionary.readInts(in);
+		labels = CompiledDictionary.readChars(in);
+		children = CompiledDictionary.readInts(in);
+		foundIndices = CompiledDictionary.readInts(in);
+	}
+
+	/** Writes the trie, for the compiled form of the translation list. */
+	void write(DataOutputStream out) throws IOException
+	{
+		out.writeByte(reverse ? 1 : 0);
+		out.writeInt(maxLength);
+		CompiledDictionary.writeInts(out, lengths);
+		CompiledDictionary.writeInts(out, edges);
+		CompiledDictionary.writeInts(out, depth);
+		CompiledDictionary.writeInts(out, found);
+		CompiledDictionary.writeInts(out, fail);
+		CompiledDictionary.writeInts(out, foundLink);
+		CompiledDictionary.writeChars(out, labels);
+		CompiledDictionary.writeInts(out, children);
+		CompiledDictionary.writeInts(out, foundIndices);
+	}
+
+	private boolean hasFound(int node)
+	{
+		return found[node] < found[node + 1];
+	}
+
+	private int child(int node, char c)
+	{
+		int lo = edges[node], hi = edges[node + 1] - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if(labels[mid] < c)
+				lo = mid + 1;
+			else if(labels[mid] > c)
+				hi = mid - 1;
+			else
+				return children[mid];
+		}
+		return -1;
+	}
+
+	/** The automaton transition from a node by a character. */
+	private int step(int node, char c)
+	{
+		while(true) {
+			int next = child(node, c);
+			if(next >= 0)
+				return next;
+			if(node == 0)
+				return 0;
+			node = fail[node];
+		}
+	}
+
+	/**
+	 * Finds the leftmost search string in the text from the given index; of
+	 * the strings at the same position, the first one in the list.
+	 * Returns the position shifted left by 32 bits, or'ed with the index of
+	 * the string, or -1 if none is found.
+	 */
+	private long findLeftmost(String text, int from)
+	{
+		int bestStart = -1;
+		int bestIndex = -1;
+		int node = 0;
+		for(int i = from; i < text.length(); i++) {
+			// Strings ending further on start after the best one
+			if(bestStart >= 0 && i >= bestStart + maxLength)
+				break;
+			node = step(node, text.charAt(i));
+			for(int f = hasFound(node) ? node : foundLink[node]; f != 0; f = foundLink[f]) {
+				int start = i + 1 - depth[f];
+				int index = foundIndices[found[f]];
+				if(bestStart < 0 || start < bestStart || (start == bestStart && index < bestIndex)) {
+					bestStart = start;
+					bestIndex = index;
+				}
+			}
+		}
+		return bestStart < 0 ? -1 : ((long)bestStart << 32) | bestIndex;
+	}
+
+	/**
+	 * Replaces the search strings anywhere in the text, as
+	 * StringUtils.replaceEach does. Returns the text itself if nothing is replaced.
+	 */
+	String replaceEach(String text, String[] replace)
+	{
+		long match = findLeftmost(text, 0);
+		if(match < 0)
+			return text;
+		StringBuilder res = new StringBuilder(text.length() + 16);
+		int start = 0;
+		while(match >= 0) {
+			int pos = (int)(match >>> 32);
+			int index = (int)match;
+			res.append(text, start, pos);
+			res.append(replace[index]);
+			start = pos + lengths[index];
+			match = findLeftmost(text, start);
+		}
+		res.append(text, start, text.length());
+		return res.toString();
+	}
+
+	/**
+	 * Replaces the search strings one after another at the start of the text,
+	 * or at the end for a reverse trie, in the order of the list.
+	 * Returns the text itself if nothing is replaced.
+	 */
+	String replaceInOrder(String text, String[] replace)
+	{
+		int last = -1;
+		while(true) {
+			// The next string in the list which matches
+			int next = -1;
+			int node = 0;
+			for(int i = 0; i < text.length(); i++) {
+				node = child(node, text.charAt(reverse ? text.length() - 1 - i : i));
+				if(node < 0)
+					break;
+				for(int f = found[node]; f < found[node + 1]; f++) {
+					int index = foundIndices[f];
+					if(index > last) {
+						if(next < 0 || index < next)
+							next = index;
+						break;
+					}
+				}
+			}
+			if(next < 0)
+				return text;
+			if(reverse)
+				text = text.substring(0, text.length() - lengths[next]) + replace[next];
+			else
+				text = replace[next] + text.substring(lengths[next]);
+			last = next;
+		}
+	}
+}
@@ -0,0 +1,290 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Translates an uncompressed OSM XML file in parallel parts. The file is
+ * split into byte ranges which start at a map element, and each range is
+ * translated by its own MapTranslater with the raw scanner, into a temporary
+ * file. The parts are then joined. As the first part starts at the beginning
+ * and the last part ends at the end of the file, the XML header and footer
+ * are written once. The result is the same as with the mmap engine.
+ */
+class SplitTranslater {
+
+	private static final byte[][] MAP_ELEMS = { "<node".getBytes(), "<way".getBytes(), "<relation".getBytes() };
+	private static final byte[] COMMENT_START = "<!--".getBytes();
+	private static final byte[] COMMENT_END = "-->".getBytes();
+	private static final byte[] CDATA_START = "<![CDATA[".getBytes();
+	private static final byte[] CDATA_END = "]]>".getBytes();
+
+	// States of the scan for comments and CDATA sections
+	private static final int TEXT = 0;
+	private static final int COMMENT = 1;
+	private static final int CDATA = 2;
+
+	/**
+	 * Translates the file in the given number of parts, and writes the result to out.
+	 * The counts and statistics are added to main, which provides the settings.
+	 * With gzip, each part is compressed separately; the joined parts are a valid gzip file.
+	 */
+	static void translate(final MapTranslater main, final FileChannel in, FileChannel out, final boolean gzip,
+			int parts, File tmpDir) throws IOException
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(parts);
+		List<File> tmpFiles = new ArrayList<File>();
+		List<Future<MapTranslater>> results = new ArrayList<Future<MapTranslater>>();
+		try {
+			final long[] bounds = split(in, parts, pool);
+			int n = bounds.length - 1;
+			for(int i = 0; i < n; i++) {
+				final int part = i;
+				final File tmpFile = File.createTempFile("part", ".tr.tmp", tmpDir);
+				tmpFile.deleteOnExit();
+				tmpFiles.add(tmpFile);
+				results.add(pool.submit(new Callable<MapTranslater>() {
+					public MapTranslater call() throws IOException {
+						FileOutputStream fos = new FileOutputStream(tmpFile);
+						XmlWriter partOut = gzip ?
+								new XmlWriter(Channels.newChannel(new GZIPOutputStream(fos, 1 << 16))) :
+								new XmlWriter(fos.getChannel());
+						MapTranslater tr = main.newWorker(partOut);
+						tr.translate(in, bounds[part], bounds[part + 1]);
+						partOut.close();
+						fos.close();
+						return tr;
+					}
+				}));
+			}
+			for(Future<MapTranslater> result : results)
+				main.addResults(result.get());
+
+			// Join the parts
+			for(File tmp : tmpFiles) {
+				FileInputStream partIn = new FileInputStream(tmp);
+				FileChannel ch = partIn.getChannel();
+				long size = ch.size();
+				for(long pos = 0; pos < size; )
+					pos += ch.transferTo(pos, size - pos, out);
+				partIn.close();
+			}
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Translation of a part failed", e.getCause());
+		}
+		finally {
+			pool.shutdownNow();
+			for(File tmp : tmpFiles)
+				tmp.delete();
+		}
+		main.writeStats();
+	}
+
+	/**
+	 * Returns the bounds of up to the given number of parts of similar size,
+	 * each starting with a map element, except for the first. The bounds are
+	 * found near the multiples of the part size, and the parts are scanned on
+	 * the pool for comments and CDATA sections, all at once. If no part ends
+	 * within one, no bound is within one, as the first part starts outside.
+	 * Otherwise, which is rare, the bounds are found by scanning the file from
+	 * the start.
+	 */
+	static long[] split(final FileChannel in, int parts, ExecutorService pool) throws IOException
+	{
+		long size = in.size();
+		List<Long> list = new ArrayList<Long>();
+		list.add(0L);
+		for(int i = 1; i < parts; i++) {
+			long last = list.get(list.size() - 1);
+			long b = nextMapElement(in, Math.max(size / parts * i, last + 1));
+			if(b >= size)
+				break;
+			list.add(b);
+		}
+		list.add(size);
+		final long[] bounds = toArray(list);
+
+		List<Future<Integer>> states = new ArrayList<Future<Integer>>();
+		for(int i = 0; i + 1 < bounds.length; i++) {
+			final int part = i;
+			states.add(pool.submit(new Callable<Integer>() {
+				public Integer call() throws IOException {
+					return scan(in, bounds[part], bounds[part + 1], null, 0);
+				}
+			}));
+		}
+		try {
+			for(Future<Integer> state : states) {
+				if(state.get() != TEXT) {
+					// A bound within a comment or CDATA section
+					list.clear();
+					list.add(0L);
+					scan(in, 0, size, list, parts);
+					list.add(size);
+					return toArray(list);
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Splitting failed", e.getCause());
+		}
+		return bounds;
+	}
+
+	private static long[] toArray(List<Long> list)
+	{
+		long[] result = new long[list.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = list.get(i);
+		return result;
+	}
+
+	/** Finds the start of the next map element at or after a file offset. Returns the file size if none. */
+	private static long nextMapElement(FileChannel in, long from) throws IOException
+	{
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		long size = in.size();
+		long pos = from;
+		while(pos < size) {
+			buf.clear();
+			int n = in.read(buf, pos);
+			if(n <= 0)
+				break;
+			boolean last = pos + n >= size;
+			// Elements at the end of the buffer are checked again with the next read
+			int stop = last ? n : Math.max(1, n - 16);
+			byte[] a = buf.array();
+			for(int i = 0; i < stop; i++) {
+				if(a[i] == '<' && isMapElement(a, i, n))
+					return pos + i;
+			}
+			if(last)
+				break;
+			pos += stop;
+		}
+		return size;
+	}
+
+	/**
+	 * Scans the file from start to end, starting outside of comments and
+	 * CDATA sections, and returns the state at the end. With bounds, the
+	 * bounds of the given number of parts are added to it: the first map
+	 * element outside of comments and CDATA sections at or after each
+	 * multiple of the part size.
+	 */
+	private static int scan(FileChannel in, long start, long end, List<Long> bounds, int parts) throws IOException
+	{
+		long size = in.size();
+		long target = bounds != null ? size / parts : Long.MAX_VALUE;
+		ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+		byte[] a = buf.array();
+		int state = TEXT;
+		long pos = start;
+		while(pos < end) {
+			buf.clear();
+			if(end - pos < buf.capacity())
+				buf.limit((int)(end - pos));
+			int n = in.read(buf, pos);
+			if(n <= 0)
+				break;
+			boolean last = pos + n >= end;
+			// Markers at the end of the buffer are checked again with the next read
+			int stop = last ? n : Math.max(1, n - 16);
+			int i = 0;
+			while(i < stop) {
+				if(state != TEXT) {
+					byte[] close = state == COMMENT ? COMMENT_END : CDATA_END;
+					if(startsWith(a, i, n, close)) {
+						i += close.length;
+						state = TEXT;
+						continue;
+					}
+				}
+				else if(a[i] == '<') {
+					if(startsWith(a, i, n, COMMENT_START)) {
+						state = COMMENT;
+						i += COMMENT_START.length;
+						continue;
+					}
+					if(startsWith(a, i, n, CDATA_START)) {
+						state = CDATA;
+						i += CDATA_START.length;
+						continue;
+					}
+					if(pos + i >= target && isMapElement(a, i, n)) {
+						bounds.add(pos + i);
+						if(bounds.size() == parts)
+							return state;
+						target = Math.max(size / parts * bounds.size(), pos + i + 1);
+					}
+				}
+				i++;
+			}
+			if(last)
+				break;
+			pos += i;
+		}
+		return state;
+	}
+
+	private static boolean startsWith(byte[] a, int i, int n, byte[] s)
+	{
+		if(i + s.length > n)
+			return false;
+		for(int k = 0; k < s.length; k++) {
+			if(a[i + k] != s[k])
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean isMapElement(byte[] a, int i, int n)
+	{
+		for(byte[] name : MAP_ELEMS) {
+			if(i + name.length >= n)
+				continue;
+			int k = 1;
+			while(k < name.length && a[i + k] == name[k])
+				k++;
+			if(k < name.length)
+				continue;
+			byte c = a[i + k];
+			if(c == ' ' || c == '>' || c == '/' || c == '\n' || c == '\t' || c == '\r')
+				return true;
+		}
+		return false;
+	}
+}
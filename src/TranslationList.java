@@ -14,13 +14,14 @@
  */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
-import org.apache.commons.lang.StringUtils;
-
 import com.atilika.kuromoji.ipadic.Token;
 import com.atilika.kuromoji.ipadic.Tokenizer;
 
@@ -33,6 +34,9 @@ import com.atilika.kuromoji.ipadic.Tokenizer;
  * - 2 translates the text only at the beginning
  * - 3 translates the text only at the end
  * If anything else (or nothing) is found in the usage column, the line is ignored. 
+ * The Japanese texts of each usage are compiled into a SearchTrie, so the
+ * list may grow large without slowing down the translation. The tries are
+ * stored in the compiled form of the list, see CompiledDictionary.
  */
 public class TranslationList {
 	
@@ -41,15 +45,30 @@ public class TranslationList {
 	static final int COL_TRL = 1;
 	static final int COL_USAGE = 2;
 
-	private String[] srcEverywhere, trlEverywhere;
-	private String[] srcPrefix, trlPrefix;
-	private String[] srcSuffix, trlSuffix; 
+	private SearchTrie srcEverywhere, srcPrefix, srcSuffix;
+	private String[] trlEverywhere, trlPrefix, trlSuffix;
 	
 	private int verbose = 0; 
 	
-	/** Reads a word list from a file. */
+	/** Reads a translation list from a file, or from its compiled form if it is up to date. */
 	public TranslationList(String file)
 	{
+		this(file, true);
+	}
+	
+	private TranslationList(String file, boolean useCompiled)
+	{
+		ByteBuffer compiled = useCompiled ? CompiledDictionary.open(file, CompiledDictionary.TRANSLATION_LIST) : null;
+		if(compiled != null) {
+			srcEverywhere = new SearchTrie(compiled);
+			trlEverywhere = readStrings(compiled);
+			srcPrefix = new SearchTrie(compiled);
+			trlPrefix = readStrings(compiled);
+			srcSuffix = new SearchTrie(compiled);
+			trlSuffix = readStrings(compiled);
+			return;
+		}
+		
 		ArrayList<String> sEverywhere = new ArrayList<String>(); 
 		ArrayList<String> tEverywhere = new ArrayList<String>(); 
 		ArrayList<String> sPrefix = new ArrayList<String>(); 
@@ -85,14 +104,45 @@ public class TranslationList {
 			System.err.println("error while reading translation list: " + ex.getMessage());
 		}
 		
-		srcEverywhere = (String[]) sEverywhere.toArray(new String[sEverywhere.size()]);
+		srcEverywhere = new SearchTrie(sEverywhere.toArray(new String[sEverywhere.size()]), false);
 		trlEverywhere = (String[]) tEverywhere.toArray(new String[tEverywhere.size()]);
-		srcPrefix = (String[]) sPrefix.toArray(new String[sPrefix.size()]);
+		srcPrefix = new SearchTrie(sPrefix.toArray(new String[sPrefix.size()]), false);
 		trlPrefix = (String[]) tPrefix.toArray(new String[tPrefix.size()]);
-		srcSuffix = (String[]) sSuffix.toArray(new String[sSuffix.size()]);
+		srcSuffix = new SearchTrie(sSuffix.toArray(new String[sSuffix.size()]), true);
 		trlSuffix = (String[]) tSuffix.toArray(new String[tSuffix.size()]);
 	}
 	
+	/** Reads a translation list from a file, and writes its compiled form. Returns the number of entries. */
+	public static int compile(String file) throws IOException
+	{
+		TranslationList tl = new TranslationList(file, false);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = CompiledDictionary.create(bytes);
+		tl.srcEverywhere.write(out);
+		writeStrings(out, tl.trlEverywhere);
+		tl.srcPrefix.write(out);
+		writeStrings(out, tl.trlPrefix);
+		tl.srcSuffix.write(out);
+		writeStrings(out, tl.trlSuffix);
+		CompiledDictionary.save(file, CompiledDictionary.TRANSLATION_LIST, out, bytes);
+		return tl.trlEverywhere.length + tl.trlPrefix.length + tl.trlSuffix.length;
+	}
+	
+	private static void writeStrings(DataOutputStream out, String[] strings) throws IOException
+	{
+		out.writeInt(strings.length);
+		for(String s : strings)
+			CompiledDictionary.writeString(out, s);
+	}
+	
+	private static String[] readStrings(ByteBuffer in)
+	{
+		String[] strings = new String[in.getInt()];
+		for(int i = 0; i < strings.length; i++)
+			strings[i] = CompiledDictionary.readString(in);
+		return strings;
+	}
+	
 	/** Attempts to translate a text using the word list. */
 	public String translate(Tokenizer tok, String text)
 	{
@@ -101,13 +151,7 @@ public class TranslationList {
 		for(Token t : tok.tokenize(text)) {
 			if(Transliterator.hasAsianChar(t.getSurface())) {
 				// attempt (partial) translation
-				String s = t.getSurface();
-				String r = StringUtils.replaceEach(s, srcEverywhere, trlEverywhere);
-				r = replaceAnyOfAtStart(r, srcPrefix, trlPrefix);
-				r = replaceAnyOfAtEnd(r, srcSuffix, trlSuffix);
-				if(r != s && verbose > 1)
-					System.out.println("translation list: translated " + s + " to " + r);
-				res.append(r);				
+				res.append(translateToken(t.getSurface()));
 			}
 			else // tokens without asian chars can be ignored here and will be copied directly
 				res.append(t.getSurface());
@@ -115,24 +159,20 @@ public class TranslationList {
 		return res.toString();
 	}
 	
-	public static String replaceAnyOfAtStart(String s, String[] search, String[] replace)
+	/**
+	 * Attempts to translate a single token of Asian text.
+	 * Returns the token itself if nothing is translated.
+	 */
+	public String translateToken(String s)
 	{
-		for(int i = 0; i < search.length; i++) {
-			if(s.startsWith(search[i]))
-				s = replace[i] + s.substring(search[i].length());
-		}
-		return s; 
+		String r = srcEverywhere.replaceEach(s, trlEverywhere);
+		r = srcPrefix.replaceInOrder(r, trlPrefix);
+		r = srcSuffix.replaceInOrder(r, trlSuffix);
+		if(r != s && verbose > 1)
+			System.out.println("translation list: translated " + s + " to " + r);
+		return r;
 	}
-
-	public static String replaceAnyOfAtEnd(String s, String[] search, String[] replace)
-	{
-		for(int i = 0; i < search.length; i++) {
-			if(s.endsWith(search[i]))
-				s = s.substring(0, s.length() - search[i].length()) + replace[i]; 
-		}
-		return s; 
-	}
-
+	
 	public void setVerbose(int v) {
 		verbose = v; 
 	}
@@ -0,0 +1,231 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transliterates the names of one file on several threads. The parsing
+ * thread writes the XML output through this channel into batches, and marks
+ * the positions where the new name tags of a map element belong. Workers
+ * determine the names of a batch, and a writer thread writes the batches in
+ * their original order, with the new tags inserted. The output is the same
+ * as without the pipeline. The queue of batches is bounded, so the parser
+ * waits when the workers or the writer fall behind.
+ */
+class TranslationPipeline implements WritableByteChannel {
+
+	static final int BATCH_ELEMENTS = 1024;
+	static final int BATCH_BYTES = 1 << 20;
+
+	/** Output of the parser, with the names of the map elements. */
+	private static class Batch {
+		byte[] data = new byte[BATCH_BYTES + (1 << 16)];
+		int length = 0;
+		int[] insertAt = new int[BATCH_ELEMENTS];
+		String[] names = new String[4 * BATCH_ELEMENTS]; // jaName, enName, enNameOnly, deName
+		String[] newNames = new String[2 * BATCH_ELEMENTS]; // name:en, name:de
+		int count = 0;
+	}
+
+	private final MapTranslater main;
+	private final XmlWriter target;
+	private final XmlWriter writer = new XmlWriter(this);
+	private final ExecutorService workers;
+	private final BlockingQueue<Future<Batch>> queue;
+	private final Thread writerThread;
+	private volatile Throwable failure = null;
+
+	// One MapTranslater per worker thread, for the transliteration and its counts
+	private final List<MapTranslater> translaters = new ArrayList<MapTranslater>();
+	private final ThreadLocal<MapTranslater> translater = new ThreadLocal<MapTranslater>() {
+		@Override
+		protected MapTranslater initialValue() {
+			MapTranslater tr = main.newWorker(null);
+			synchronized(translaters) {
+				translaters.add(tr);
+			}
+			return tr;
+		}
+	};
+
+	private Batch batch = new Batch();
+
+	/** Creates a pipeline with the given number of workers, writing to target. */
+	TranslationPipeline(MapTranslater main, XmlWriter target, int threads)
+	{
+		this.main = main;
+		this.target = target;
+		workers = DaemonThreads.newFixedThreadPool(threads, "pipeline worker");
+		queue = new ArrayBlockingQueue<Future<Batch>>(2 * threads);
+		writerThread = new Thread("TranslationPipeline writer") {
+			@Override
+			public void run() {
+				writeBatches();
+			}
+		};
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	/** The writer for the parsing thread. */
+	XmlWriter getWriter() {
+		return writer;
+	}
+
+	/** Marks the current output position for the new name tags of a map element with these names. */
+	void insertNames(String jaName, String enName, String enNameOnly, String deName) throws IOException
+	{
+		if(jaName == null)
+			return; // nothing will be added
+		writer.flush();
+		int i = batch.count++;
+		batch.insertAt[i] = batch.length;
+		batch.names[4 * i] = jaName;
+		batch.names[4 * i + 1] = enName;
+		batch.names[4 * i + 2] = enNameOnly;
+		batch.names[4 * i + 3] = deName;
+		if(batch.count == BATCH_ELEMENTS)
+			submit();
+	}
+
+	/** Writes the remaining output, waits for the writer, and adds the counts to the main MapTranslater. */
+	void finish() throws IOException
+	{
+		writer.flush();
+		submit();
+		FutureTask<Batch> end = new FutureTask<Batch>(new Callable<Batch>() {
+			public Batch call() {
+				return null;
+			}
+		});
+		end.run();
+		put(end);
+		try {
+			writerThread.join();
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		workers.shutdown();
+		checkFailure();
+		for(MapTranslater tr : translaters)
+			main.addResults(tr);
+	}
+
+	/** Stops the workers and the writer without writing the rest, after a failure. */
+	void abort()
+	{
+		workers.shutdownNow();
+		writerThread.interrupt();
+	}
+
+	// Receives the output of the parsing thread
+	public int write(ByteBuffer src) throws IOException
+	{
+		int n = src.remaining();
+		if(batch.length + n > batch.data.length)
+			batch.data = Arrays.copyOf(batch.data, Math.max(2 * batch.data.length, batch.length + n));
+		src.get(batch.data, batch.length, n);
+		batch.length += n;
+		if(batch.length >= BATCH_BYTES)
+			submit();
+		return n;
+	}
+
+	public boolean isOpen() {
+		return true;
+	}
+
+	public void close() {
+	}
+
+	private void submit() throws IOException
+	{
+		if(batch.length == 0 && batch.count == 0)
+			return;
+		final Batch b = batch;
+		batch = new Batch();
+		put(workers.submit(new Callable<Batch>() {
+			public Batch call() throws IOException {
+				MapTranslater tr = translater.get();
+				for(int i = 0; i < b.count; i++) {
+					tr.translateNames(b.names[4 * i], b.names[4 * i + 1], b.names[4 * i + 2], b.names[4 * i + 3]);
+					b.newNames[2 * i] = tr.getNewEnName();
+					b.newNames[2 * i + 1] = tr.getNewDeName();
+				}
+				return b;
+			}
+		}));
+	}
+
+	private void put(Future<Batch> f) throws IOException
+	{
+		try {
+			while(!queue.offer(f, 100, TimeUnit.MILLISECONDS))
+				checkFailure();
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		checkFailure();
+	}
+
+	private void checkFailure() throws IOException
+	{
+		if(failure != null) {
+			workers.shutdownNow();
+			throw new IOException("Translation pipeline failed", failure);
+		}
+	}
+
+	// Runs on the writer thread
+	private void writeBatches()
+	{
+		try {
+			while(true) {
+				Batch b = queue.take().get();
+				if(b == null)
+					break;
+				int pos = 0;
+				for(int i = 0; i < b.count; i++) {
+					target.write(b.data, pos, b.insertAt[i] - pos);
+					MapTranslater.writeNewTags(target, b.newNames[2 * i], b.newNames[2 * i + 1]);
+					pos = b.insertAt[i];
+				}
+				target.write(b.data, pos, b.length - pos);
+			}
+			target.flush();
+		}
+		catch(ExecutionException e) {
+			failure = e.getCause();
+		}
+		catch(Throwable t) {
+			failure = t;
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of transliteration results, keyed by the Japanese name.
+ * When the cache is full, the least recently used entry is evicted. The last
+ * few results are kept in front of the map, because consecutive map elements,
+ * like the segments of a street, often have the same name. Hits in front do
+ * not reach the map, so an entry is marked as used in the map when it leaves
+ * the front; a name which is looked up often is not evicted meanwhile.
+ */
+public class TransliterationCache {
+
+	static final int FRONT_SIZE = 4;
+
+	/** A cached result: the transliterated name, and the name after the word list translation. */
+	public static class Result {
+		final String trName;
+		final String woName;
+
+		public Result(String trName, String woName) {
+			this.trName = trName;
+			this.woName = woName;
+		}
+	}
+
+	private final int maxSize;
+	private final Map<String, Result> map;
+
+	// Most recent results, used round robin
+	private final String[] frontKeys = new String[FRONT_SIZE];
+	private final Result[] frontResults = new Result[FRONT_SIZE];
+	private int frontNext = 0;
+
+	private long hits = 0, misses = 0, evictions = 0;
+
+	public TransliterationCache(final int maxSize)
+	{
+		this.maxSize = maxSize;
+		map = new LinkedHashMap<String, Result>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Result> eldest) {
+				if(size() <= maxSize)
+					return false;
+				evictions++;
+				return true;
+			}
+		};
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/** Returns the cached result for a Japanese name, or null. */
+	public Result get(String jaName)
+	{
+		for(int i = 0; i < FRONT_SIZE; i++) {
+			if(jaName.equals(frontKeys[i])) {
+				hits++;
+				return frontResults[i];
+			}
+		}
+		Result r = map.get(jaName);
+		if(r == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		addFront(jaName, r);
+		return r;
+	}
+
+	public void put(String jaName, Result r)
+	{
+		// Before the map may evict an entry, which might be the one leaving the front
+		addFront(jaName, r);
+		map.put(jaName, r);
+	}
+
+	private void addFront(String jaName, Result r)
+	{
+		// The entry leaving the front was used after its last access of the map
+		if(frontKeys[frontNext] != null)
+			map.get(frontKeys[frontNext]);
+		frontKeys[frontNext] = jaName;
+		frontResults[frontNext] = r;
+		frontNext = (frontNext + 1) % FRONT_SIZE;
+	}
+
+	/** Adds the counts of another cache, e.g. of a worker thread. */
+	public void addCounts(TransliterationCache other)
+	{
+		hits += other.hits;
+		misses += other.misses;
+		evictions += other.evictions;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+}
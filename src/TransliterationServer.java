@@ -0,0 +1,170 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A server which keeps the dictionaries loaded, so that small jobs do not pay
+ * for starting the JVM and loading the dictionaries each time, and the client
+ * for it. The server listens on a port of the local host.
+ * <p>
+ * Protocol: the client sends names in UTF-8, one per line, and the server
+ * answers each with a line holding the transliterated name, translated with
+ * the word and translation lists of the server if it has them. The answers
+ * are flushed whenever the server has read all names sent so far, so a
+ * client may send a whole batch at once. The client ends the batch by
+ * closing its side of the connection.
+ */
+class TransliterationServer {
+
+	static final int DEFAULT_PORT = 47390;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** Serves the connections, each on its own thread with a worker of main. Does not return. */
+	static void serve(final MapTranslater main, int port) throws IOException
+	{
+		ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		System.out.println("Listening on " + server.getLocalSocketAddress());
+		ExecutorService pool = Executors.newCachedThreadPool();
+		while(true) {
+			final Socket socket = server.accept();
+			pool.submit(new Runnable() {
+				public void run() {
+					try {
+						handle(main.newWorker(null), socket);
+					} catch (IOException e) {
+						System.err.println("connection failed: " + e.getMessage());
+					}
+				}
+			});
+		}
+	}
+
+	private static void handle(MapTranslater tr, Socket socket) throws IOException
+	{
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+			Writer out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+			String name;
+			while((name = in.readLine()) != null) {
+				out.write(tr.transliterateName(name).woName);
+				out.write('\n');
+				if(!in.ready())
+					out.flush();
+			}
+			out.flush();
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	/**
+	 * Transliterates the lines of a file by the server, and writes them to
+	 * FILE.tr, as Transliterator.main does. Without file, the lines of the
+	 * standard input are written to the standard output.
+	 */
+	static void client(int port, String file) throws IOException
+	{
+		InputStream in = file != null ? new FileInputStream(file) : System.in;
+		OutputStream out = file != null ? new FileOutputStream(file + ".tr") : System.out;
+		Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+		try {
+			// Send on another thread, so that the answers are read meanwhile
+			Sender sender = new Sender(in, socket);
+			sender.start();
+			BufferedReader answers = new BufferedReader(new InputStreamReader(socket.getInputStream(), UTF8));
+			Writer w = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+			String l;
+			while((l = answers.readLine()) != null) {
+				w.write(l);
+				w.write('\n');
+			}
+			w.flush();
+			if(!sender.sent && sender.error == null)
+				throw new IOException("Connection closed by the server");
+			sender.join();
+			if(sender.error != null)
+				throw sender.error;
+		}
+		catch(InterruptedException e) {
+			throw new IOException("Interrupted", e);
+		}
+		finally {
+			socket.close();
+			if(file != null) {
+				in.close();
+				out.close();
+			}
+		}
+	}
+
+	private static class Sender extends Thread {
+		private final InputStream in;
+		private final Socket socket;
+		volatile IOException error = null;
+		volatile boolean sent = false; // all names, before the end of the input is signalled
+
+		Sender(InputStream in, Socket socket)
+		{
+			super("client sender");
+			this.in = in;
+			this.socket = socket;
+			// May be blocked on the standard input when the answers fail
+			setDaemon(true);
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				BufferedReader r = new BufferedReader(new InputStreamReader(in, UTF8));
+				Writer w = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), UTF8));
+				String l;
+				while((l = r.readLine()) != null) {
+					w.write(l);
+					w.write('\n');
+					if(!r.ready())
+						w.flush(); // e.g. typed lines
+				}
+				w.flush();
+				sent = true;
+				socket.shutdownOutput();
+			} catch (IOException e) {
+				error = e;
+				try {
+					socket.close(); // stops reading the answers
+				} catch (IOException e2) {
+				}
+			}
+		}
+	}
+}
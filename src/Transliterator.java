@@ -20,177 +20,215 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import kanaconv.Kakasi;
+import kanaconv.CharClass;
+import kanaconv.RomajiConverter;
 
 import com.atilika.kuromoji.ipadic.Token;
 import com.atilika.kuromoji.ipadic.Tokenizer;
 
-/** Transliterates japanese text to latin characters (romaji). */
+/**
+ * Transliterates japanese text to latin characters (romaji).
+ * A Transliterator may be used by several threads at once. The tokenizer and
+ * the romaji tables are shared; the romaji converters, which keep the state of
+ * a conversion, are created for each thread.
+ */
 public class Transliterator {
 
-    // Two instances of the Kakasi service
-    // are required to transliterate both kana scripts.
-	private Kakasi trHiragana = null;
-	private Kakasi trKatakana = null;
+    // The romaji converter keeps the state of a conversion,
+    // so each thread has its own.
+	private static class KanaConverters {
+		final RomajiConverter romaji = new RomajiConverter();
+		// Reused for the results
+		final StringBuilder result = new StringBuilder();
+	}
+	private final ThreadLocal<KanaConverters> kanaConverters = new ThreadLocal<KanaConverters>() {
+		@Override
+		protected KanaConverters initialValue() {
+			return new KanaConverters();
+		}
+	};
 	// Use the Kumoroji tokenizer to split words and to read kanji.
-	private Tokenizer tokKanji = null; 
+	private volatile Tokenizer tokKanji; 
+	// The tokenizer while it is loaded in the background, or null
+	private final Future<Tokenizer> tokenizerLoad;
 	
-	Tokenizer getTokenizer() {
-		return tokKanji;
+	/** Returns the tokenizer, waiting for it if it is loaded in the background. */
+	Tokenizer getTokenizer() throws IOException {
+		Tokenizer tok = tokKanji;
+		if(tok == null) {
+			tok = BackgroundLoad.await(tokenizerLoad);
+			tokKanji = tok;
+		}
+		return tok;
 	}
 	
 	public Transliterator()
 	{
-    	tokKanji = new Tokenizer(); 
-    	
-    	trHiragana = new Kakasi();
-    	trHiragana.setupHiraganaConverter(Kakasi.ASCII);
-    	trHiragana.setRomajiCapitalizeMode(true);
-    	
-    	trKatakana = new Kakasi();
-    	trKatakana.setupKatakanaConverter(Kakasi.ASCII);
-    	trKatakana.setRomajiCapitalizeMode(true);		
+		this(new Tokenizer());
+	}
+	
+	/** Creates a Transliterator using a shared tokenizer. The Kuromoji tokenizer is thread-safe. */
+	public Transliterator(Tokenizer tokenizer)
+	{
+    	tokKanji = tokenizer; 
+    	tokenizerLoad = null;
+	}
+	
+	/**
+	 * Creates a Transliterator with a tokenizer which is being loaded, e.g. by
+	 * BackgroundLoad. The first transliteration waits for it.
+	 */
+	public Transliterator(Future<Tokenizer> tokenizer)
+	{
+		tokKanji = null;
+		tokenizerLoad = tokenizer;
 	}
     
     public static boolean isAsianChar(char ch)
     {
-		// very simplified range matching; this range
-		// contains all japanese scripts (Hiragana, Katakana and Kanji)
-		// surrogate pairs are also accepted because many CJK chars are extended
-		return ((ch >= 0x2E80 && ch < 0xA000) || (ch >= 0xD800 && ch <= 0xDFFF));
+		// see CharClass.ASIAN for the ranges
+		return (CharClass.of(ch) & CharClass.ASIAN) != 0;
     }
     
     // returns true if any of the east-asian scripts is used
     public static boolean hasAsianChar(String text)
     {
-    	for(int c = 0; c < text.length(); c++) {
-    		char ch = text.charAt(c);
-    		if(isAsianChar(ch))
+    	for(int c = 0; c < text.length(); ) {
+    		int cp = text.codePointAt(c);
+    		if(CharClass.is(cp, CharClass.ASIAN))
     			return true; 
+    		c += Character.charCount(cp);
     	}
     	return false; 
     }
     
     public static boolean isKanji(char ch)
     {
-		// very simplified range matching; this range
-		// contains excludes the Hiragana and Katakana, but includes
-    	// all CJK chars and some other asian scripts
-		// surrogate pairs are also accepted because many CJK chars are extended
-		return ((ch >= 0x3200 && ch < 0xA000) || (ch >= 0xD800 && ch <= 0xDFFF)); 
+		// see CharClass.IDEOGRAPHIC for the ranges
+		return (CharClass.of(ch) & CharClass.IDEOGRAPHIC) != 0; 
     }
     
     // returns true ONLY if kanji are used
     public static boolean hasKanji(String text)
     {
-    	for(int c = 0; c < text.length(); c++) {
-    		char ch = text.charAt(c);
-    		if(isKanji(ch))
+    	for(int c = 0; c < text.length(); ) {
+    		int cp = text.codePointAt(c);
+    		if(CharClass.is(cp, CharClass.IDEOGRAPHIC))
     			return true; 
+    		c += Character.charCount(cp);
     	}
     	return false; 
     }	
     
     // -------------------
     // Prenormalization: replace some simple Asian character variants by their Latin equivalents 
-    private Map<Character, Character> prenormTable = null;
-    private synchronized Map<Character, Character> getPrenormTable()
+    private static final Map<Character, Character> prenormTable = createPrenormTable();
+    private static Map<Character, Character> createPrenormTable()
     {
-    	if(prenormTable == null) {
-    		Map<Character, Character> t = new HashMap<>();
-    		t.put('\u3000', ' '); // Full-width space
-    		t.put('\uff10', '0'); // Full-width numbers
-    		t.put('\uff11', '1');
-    		t.put('\uff12', '2');
-    		t.put('\uff13', '3');
-    		t.put('\uff14', '4');
-    		t.put('\uff15', '5');
-    		t.put('\uff16', '6');
-    		t.put('\uff17', '7');
-    		t.put('\uff18', '8');
-    		t.put('\uff19', '9');
-    		t.put('\uff0c', '.'); // Full-width quotation marks
-    		t.put('\uff0e', ',');
-    		prenormTable = t; 
-    	}
-    	return prenormTable;
+    	Map<Character, Character> t = new HashMap<>();
+    	t.put('\u3000', ' '); // Full-width space
+    	t.put('\uff10', '0'); // Full-width numbers
+    	t.put('\uff11', '1');
+    	t.put('\uff12', '2');
+    	t.put('\uff13', '3');
+    	t.put('\uff14', '4');
+    	t.put('\uff15', '5');
+    	t.put('\uff16', '6');
+    	t.put('\uff17', '7');
+    	t.put('\uff18', '8');
+    	t.put('\uff19', '9');
+    	t.put('\uff0c', '.'); // Full-width quotation marks
+    	t.put('\uff0e', ',');
+    	return t;
     }
     
     String prenormalize(String str) {
-    	Map<Character, Character> tbl = getPrenormTable();
     	char[] chars = str.toCharArray();
     	for(int i = 0; i < chars.length; i++) {
     		Character cse = chars[i];
-    		Character rpl = tbl.get(cse);
+    		Character rpl = prenormTable.get(cse);
     		if(rpl != null)
     			chars[i] = rpl.charValue();
     	}
     	return new String(chars);
     }
     
-    // Postnormalization: Replace [aeiou]^ by the nice characters with macrons on top.  
-    private String postnormalize(String str) {
-    	if(str.indexOf('^') >= 0) {
-    		str = str.replace("A^", "\u0100");
-    		str = str.replace("E^", "\u0112");
-    		str = str.replace("I^", "\u012A");
-    		str = str.replace("O^", "\u014C");
-    		str = str.replace("U^", "\u016A");
-    		str = str.replace("a^", "\u0101");
-    		str = str.replace("e^", "\u0113");
-    		str = str.replace("i^", "\u012B");
-    		str = str.replace("o^", "\u014D");
-    		str = str.replace("u^", "\u016B");
-    	}
-    	// Sometimes, too many spaces are created.
-    	str = str.replace("  ", " ");
-    	str = str.trim();
-    	return str; 
+    // Appends the reading of a token with kanji, or else its surface.
+    private static void appendReading(StringBuilder sb, Token t) {
+		if(hasKanji(t.getSurface()) && !(t.getReading().equals("*"))) {
+			if(sb.length() > 0)
+				sb.append(' ');
+			sb.append(t.getReading());
+		}
+		/*if(hasKanji(t.getSurface()) && !(t.getLemmaReadingForm().equals("*"))) {
+			if(sb.length() > 0)
+				sb.append(' ');
+			sb.append(t.getLemmaReadingForm());
+		}*/
+		else {
+			String surf = t.getSurface();
+			if(sb.length() > 0 && surf.length() > 0 && !Character.isWhitespace(surf.charAt(0)))
+				sb.append(' ');
+			sb.append(surf);
+		}
+		/*sb.append(t.getReading());
+		sb.append('[');
+		sb.append(t.getSurface());
+		sb.append(']');
+		sb.append(' ');*/
     }
-    
 
+    /** Transliterates a name. May be called by several threads at once. */
     public String transliterate(String jaName) throws IOException {
+    	return transliterate(jaName, null);
+    }
+
+    /**
+     * Transliterates a name, after translating its tokens with the translation
+     * list, which may be null. The name is tokenized once; only the tokens
+     * changed by the translation list are tokenized again.
+     * May be called by several threads at once.
+     */
+    public String transliterate(String jaName, TranslationList translationList) throws IOException {
     	String trName = jaName; 
     	
     	trName = prenormalize(trName);
     	
 		// Use Kuromoji for preprocessing of kanji and for tokenization
+		Tokenizer tok = getTokenizer();
 		StringBuilder sb = new StringBuilder();
-		for(Token t : tokKanji.tokenize(trName)) {
-			if(hasKanji(t.getSurface()) && !(t.getReading().equals("*"))) {
-				if(sb.length() > 0)
-					sb.append(' ');
-				sb.append(t.getReading());
-			}
-			/*if(hasKanji(t.getSurface()) && !(t.getLemmaReadingForm().equals("*"))) {
-				if(sb.length() > 0)
-					sb.append(' ');
-				sb.append(t.getLemmaReadingForm());
-			}*/
-			else {
-				String surf = t.getSurface();
-				if(sb.length() > 0 && surf.length() > 0 && !Character.isWhitespace(surf.charAt(0)))
-					sb.append(' ');
-				sb.append(surf);
+		for(Token t : tok.tokenize(trName)) {
+			String surf = t.getSurface();
+			if(translationList != null && hasAsianChar(surf)) {
+				String translated = translationList.translateToken(surf);
+				if(translated != surf) {
+					for(Token u : tok.tokenize(translated))
+						appendReading(sb, u);
+					continue;
+				}
 			}
-			/*sb.append(t.getReading());
-			sb.append('[');
-			sb.append(t.getSurface());
-			sb.append(']');
-			sb.append(' ');*/
+			appendReading(sb, t);
 		}
-		trName = sb.toString();
-		
-		// Use Kakasi for rest of conversion
-		trName = trHiragana.doString(trName);
-		trName = trKatakana.doString(trName);
 		
-		// Add spaces between words (but not within abbreviations)
-		trName = trName.replaceAll("([a-z0-9])([A-Z])", "$1 $2");
-		trName = postnormalize(trName);
+		// Convert the kana in one scan, which also adds spaces between words
+		// (but not within abbreviations), replaces [aeiou]^ by the nice
+		// characters with macrons on top and removes too many spaces.
+		KanaConverters kana = kanaConverters.get();
+		kana.result.setLength(0);
+		kana.romaji.convert(sb, 0, sb.length(), kana.result);
+		trName = kana.result.toString();
 		
 		/*// debugging option: marking remaining asian chars in the output.  
 		StringBuilder sbOut = new StringBuilder();
@@ -206,6 +244,106 @@ public class Transliterator {
 		return trName; 
 	}	
     
+    /** The number of distinct names a batch hands to a worker at once. */
+    static final int BATCH_CHUNK_SIZE = 256;
+
+    /** The number of lines main() transliterates as one batch. */
+    static final int MAIN_BATCH_SIZE = 1 << 16;
+
+    /** The results of a batch, in the order of the names, and the time it took. */
+    public static class Batch {
+    	private final List<String> results;
+    	private final int numDistinct;
+    	private final long nanos;
+
+    	Batch(List<String> results, int numDistinct, long nanos) {
+    		this.results = results;
+    		this.numDistinct = numDistinct;
+    		this.nanos = nanos;
+    	}
+
+    	public List<String> getResults() {
+    		return results;
+    	}
+
+    	public int getNumDistinct() {
+    		return numDistinct;
+    	}
+
+    	public long getMillis() {
+    		return nanos / 1000000;
+    	}
+    }
+
+    /** Transliterates a batch of names on one thread per processor. */
+    public Batch transliterateAll(List<String> names) throws IOException {
+    	return transliterateAll(names, null, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Transliterates a batch of names, as transliterate(String, TranslationList)
+     * does, on the given number of threads. Each distinct name is transliterated
+     * once; the distinct names are handed to the threads in chunks, so that each
+     * thread reuses its converters for many names.
+     */
+    public Batch transliterateAll(List<String> names, final TranslationList translationList, int threads)
+    		throws IOException {
+    	long start = System.nanoTime();
+    	Map<String, Integer> index = new HashMap<String, Integer>(2 * names.size());
+    	final List<String> distinct = new ArrayList<String>();
+    	int[] which = new int[names.size()];
+    	for(int i = 0; i < which.length; i++) {
+    		String name = names.get(i);
+    		Integer k = index.get(name);
+    		if(k == null) {
+    			k = distinct.size();
+    			index.put(name, k);
+    			distinct.add(name);
+    		}
+    		which[i] = k;
+    	}
+
+    	final String[] trNames = new String[distinct.size()];
+    	if(threads <= 1 || distinct.size() <= BATCH_CHUNK_SIZE) {
+    		for(int k = 0; k < trNames.length; k++)
+    			trNames[k] = transliterate(distinct.get(k), translationList);
+    	}
+    	else {
+    		ExecutorService pool = Executors.newFixedThreadPool(threads);
+    		try {
+    			List<Future<Void>> chunks = new ArrayList<Future<Void>>();
+    			for(int i = 0; i < trNames.length; i += BATCH_CHUNK_SIZE) {
+    				final int from = i;
+    				final int to = Math.min(i + BATCH_CHUNK_SIZE, trNames.length);
+    				chunks.add(pool.submit(new Callable<Void>() {
+    					public Void call() throws IOException {
+    						for(int k = from; k < to; k++)
+    							trNames[k] = transliterate(distinct.get(k), translationList);
+    						return null;
+    					}
+    				}));
+    			}
+    			for(Future<Void> chunk : chunks)
+    				chunk.get();
+    		}
+    		catch(InterruptedException e) {
+    			throw new IOException("Interrupted", e);
+    		}
+    		catch(ExecutionException e) {
+    			throw new IOException("Transliteration failed", e.getCause());
+    		}
+    		finally {
+    			pool.shutdownNow();
+    		}
+    	}
+
+    	String[] results = new String[which.length];
+    	for(int i = 0; i < which.length; i++)
+    		results[i] = trNames[which[i]];
+    	return new Batch(Collections.unmodifiableList(Arrays.asList(results)), trNames.length,
+    			System.nanoTime() - start);
+    }
+
     public static void main(String[] args) throws IOException
     {
     	Transliterator tr = new Transliterator();
@@ -213,12 +351,21 @@ public class Transliterator {
     	{
     		BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(arg), "UTF-8"));
     		Writer w = new OutputStreamWriter(new FileOutputStream(arg + ".tr"), "UTF-8");
+    		// In batches of limited size, so that the memory does not grow with the file
+    		List<String> lines = new ArrayList<String>();
     		String l = null;
-    		while((l = r.readLine()) != null) {
-    			l = tr.transliterate(l);
-    			w.write(l);
-    			w.write('\n');
-    		}
+    		do {
+    			l = r.readLine();
+    			if(l != null)
+    				lines.add(l);
+    			if(lines.size() == MAIN_BATCH_SIZE || (l == null && !lines.isEmpty())) {
+    				for(String trLine : tr.transliterateAll(lines).getResults()) {
+    					w.write(trLine);
+    					w.write('\n');
+    				}
+    				lines.clear();
+    			}
+    		} while(l != null);
     		r.close();
     		w.close();    		
     	}
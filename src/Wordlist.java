@@ -14,18 +14,26 @@
  */
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.util.HashMap;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
-import java.util.StringTokenizer;
 
 /**
  * Manages and applies a word list for simple translation.
  * The word list must be a tab-separated file with three columns:<br>
  * 		<code>sourceword	translation	usage</code><br>
  * The line is only used if the "usage" field is not empty.
+ * <p>
+ * The words are stored in an open-addressing hash table, which is looked up
+ * with the lowercase characters of a word in the text, so that no lowercase
+ * copy is made. Only a text in which words are translated is copied.
+ * The table is stored in the compiled form of the list, see CompiledDictionary.
  */
 public class Wordlist {
 	
@@ -34,12 +42,39 @@ public class Wordlist {
 	static final int COL_TRL = 1;
 	static final int COL_USAGE = 2;
 
-	private Map<String, String> wordList = null;
+	static final String DELIMITERS = " \t\n\r\f";
+
+	// Hash table of the lowercase source words. A slot holds the offset and
+	// length of the word in the pool of characters, then those of its
+	// translation with uppercase first character, which is followed by the
+	// one with lowercase first character. Empty slots have length 0.
+	private int[] table;
+	private char[] pool;
+	private int mask;
+	// Whether the lowercase form of a string is that of its characters, which
+	// is not so for a few languages.
+	private final boolean simpleLowerCase;
 	
-	/** Reads a word list from a file. */
+	/** Reads a word list from a file, or from its compiled form if it is up to date. */
 	public Wordlist(String file)
 	{
-		wordList = new HashMap<String, String>();
+		this(file, true);
+	}
+	
+	private Wordlist(String file, boolean useCompiled)
+	{
+		String lang = Locale.getDefault().getLanguage();
+		simpleLowerCase = !(lang.equals("tr") || lang.equals("az") || lang.equals("lt"));
+
+		ByteBuffer compiled = useCompiled ? CompiledDictionary.open(file, CompiledDictionary.WORD_LIST) : null;
+		if(compiled != null) {
+			table = CompiledDictionary.readInts(compiled);
+			pool = CompiledDictionary.readChars(compiled);
+			mask = table.length / 4 - 1;
+			return;
+		}
+		
+		Map<String, String> wordList = new LinkedHashMap<String, String>();
 
 		try {
 			BufferedReader r = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
@@ -61,36 +96,133 @@ public class Wordlist {
 		{
 			System.err.println("error while reading wordlist: " + ex.getMessage());
 		}
+		
+		buildTable(wordList);
 	}
 	
-	/** Attempts to translate a text using the word list. */
+	/** Reads a word list from a file, and writes its compiled form. Returns the number of words. */
+	public static int compile(String file) throws IOException
+	{
+		Wordlist wl = new Wordlist(file, false);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = CompiledDictionary.create(bytes);
+		CompiledDictionary.writeInts(out, wl.table);
+		CompiledDictionary.writeChars(out, wl.pool);
+		CompiledDictionary.save(file, CompiledDictionary.WORD_LIST, out, bytes);
+		int n = 0;
+		for(int slot = 0; slot <= wl.mask; slot++) {
+			if(wl.table[4 * slot + 1] > 0)
+				n++;
+		}
+		return n;
+	}
+	
+	private void buildTable(Map<String, String> wordList)
+	{
+		int capacity = 16;
+		while(capacity < 2 * wordList.size())
+			capacity *= 2;
+		table = new int[4 * capacity];
+		mask = capacity - 1;
+		StringBuilder chars = new StringBuilder();
+		for(Map.Entry<String, String> e : wordList.entrySet()) {
+			String key = e.getKey();
+			int i = key.hashCode();
+			i = (i ^ (i >>> 16)) & mask;
+			while(table[4 * i + 1] > 0)
+				i = (i + 1) & mask;
+			String tr = e.getValue();
+			table[4 * i] = chars.length();
+			table[4 * i + 1] = key.length();
+			chars.append(key);
+			table[4 * i + 2] = chars.length();
+			table[4 * i + 3] = tr.length();
+			chars.append(Character.toUpperCase(tr.charAt(0))).append(tr, 1, tr.length());
+			chars.append(Character.toLowerCase(tr.charAt(0))).append(tr, 1, tr.length());
+		}
+		pool = new char[chars.length()];
+		chars.getChars(0, pool.length, pool, 0);
+	}
+	
+	/**
+	 * Finds a word in the table, comparing the lowercase form of its characters.
+	 * Returns the slot of the word, or -1.
+	 */
+	private int find(String text, int start, int end)
+	{
+		// Same as hashCode() of the lowercase word
+		int h = 0;
+		for(int i = start; i < end; i++)
+			h = 31 * h + Character.toLowerCase(text.charAt(i));
+		int slot = (h ^ (h >>> 16)) & mask;
+		int length = end - start;
+		for(int keyLength; (keyLength = table[4 * slot + 1]) > 0; slot = (slot + 1) & mask) {
+			if(keyLength != length)
+				continue;
+			int key = table[4 * slot];
+			int i = 0;
+			while(i < length && pool[key + i] == Character.toLowerCase(text.charAt(start + i)))
+				i++;
+			if(i == length)
+				return slot;
+		}
+		return -1;
+	}
+	
+	// Whether the lowercase form of a character may differ from String.toLowerCase
+	private static boolean isSpecialCase(char c)
+	{
+		return c == '\u0130' || c == '\u03a3' || Character.isSurrogate(c);
+	}
+	
+	/**
+	 * Attempts to translate a text using the word list.
+	 * Returns the text itself if no word is translated.
+	 */
 	public String translate(String text)
 	{
-		StringBuilder res = new StringBuilder();
-		StringTokenizer tk = new StringTokenizer(text, " \t\n\r\f", true);
-		while(tk.hasMoreTokens()) {
-			String t = tk.nextToken();
-			if(Character.isWhitespace(t.charAt(0))) // just copy the whitespace tokens
-				res.append(t);
-			else {
-				// process a word token
-				String tLower = t.toLowerCase();
-				boolean isTitle = Character.isUpperCase(t.charAt(0));
-				String tr = wordList.get(tLower);
-				if(tr != null) {
+		StringBuilder res = null;
+		int copied = 0; // text before this index has been copied to res
+		int length = text.length();
+		for(int start = 0; start < length; ) {
+			if(DELIMITERS.indexOf(text.charAt(start)) >= 0) {
+				start++;
+				continue;
+			}
+			int end = start + 1;
+			boolean special = isSpecialCase(text.charAt(start));
+			while(end < length && DELIMITERS.indexOf(text.charAt(end)) < 0) {
+				special |= isSpecialCase(text.charAt(end));
+				end++;
+			}
+			// words starting with other whitespace are copied as well
+			char c = text.charAt(start);
+			if(!Character.isWhitespace(c)) {
+				int slot;
+				if(simpleLowerCase && !special)
+					slot = find(text, start, end);
+				else {
+					String lower = text.substring(start, end).toLowerCase();
+					slot = find(lower, 0, lower.length());
+				}
+				if(slot >= 0) {
 					// use translated word. handle case of first char.
-					char first = tr.charAt(0);
-					if(isTitle) first = Character.toUpperCase(first);
-					else first = Character.toLowerCase(first);
-					res.append(first);
-					// just copy rest of translated word. 
-					res.append(tr.substring(1));
+					if(res == null)
+						res = new StringBuilder(length + 16);
+					res.append(text, copied, start);
+					int trl = table[4 * slot + 2];
+					int trlLength = table[4 * slot + 3];
+					if(!Character.isUpperCase(c))
+						trl += trlLength;
+					res.append(pool, trl, trlLength);
+					copied = end;
 				}
-				else // just copy original word
-					res.append(t);
 			}
+			start = end;
 		}
-		
+		if(res == null)
+			return text;
+		res.append(text, copied, length);
 		return res.toString();
 	}
 
@@ -0,0 +1,448 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Minimal pull parser for OSM XML files in UTF-8. It reports start and end
+ * tags together with their byte offsets in the input, and keeps the input
+ * bytes from the copy position on, so that they can be copied to the output
+ * unchanged. Text, comments, processing instructions and the document type
+ * declaration are skipped. The input is not validated.
+ */
+public class XmlPullReader {
+
+	public static final int END_DOCUMENT = 0;
+	public static final int START_ELEMENT = 1;
+	public static final int END_ELEMENT = 2;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int MAX_NAMES = 64;
+
+	private final InputStream in;
+	private byte[] buf = new byte[1 << 16];
+	private int len = 0; // number of valid bytes in buf
+	private long base = 0; // input offset of buf[0]
+	private int pos = 0; // parse position
+	private int copyPos = 0; // bytes before this position have been copied
+
+	// The current tag
+	private String name = null;
+	private boolean empty = false;
+	private int tagStart = 0, tagEnd = 0;
+	private int[] attrs = new int[32]; // start and end of name and value, per attribute
+	private int numAttrs = 0;
+
+	// Element and attribute names seen so far, to avoid decoding them again
+	private final String[] names = new String[MAX_NAMES];
+	private final byte[][] nameBytes = new byte[MAX_NAMES][];
+	private int numNames = 0;
+
+	public XmlPullReader(InputStream in)
+	{
+		this.in = in;
+	}
+
+	/** Advances to the next start or end tag. Returns the event type. */
+	public int next() throws IOException
+	{
+		compact();
+		while(true) {
+			int i = pos;
+			while(byteAt(i) != '<') {
+				if(i >= len) {
+					pos = tagStart = tagEnd = len;
+					name = null;
+					return END_DOCUMENT;
+				}
+				i++;
+			}
+			tagStart = i;
+			int c = byteAt(i + 1);
+			if(c == '/') {
+				int j = scanName(i + 2);
+				name = intern(i + 2, j);
+				j = skipSpace(j);
+				expect(j, '>');
+				tagEnd = pos = j + 1;
+				numAttrs = 0;
+				empty = false;
+				return END_ELEMENT;
+			}
+			if(c == '?')
+				pos = skipPast(i + 2, "?>");
+			else if(c == '!') {
+				if(startsWith(i + 2, "--"))
+					pos = skipPast(i + 4, "-->");
+				else if(startsWith(i + 2, "[CDATA["))
+					pos = skipPast(i + 9, "]]>");
+				else
+					pos = skipDeclaration(i + 2);
+			}
+			else {
+				scanStartTag(i + 1);
+				return START_ELEMENT;
+			}
+		}
+	}
+
+	/** Name of the current element. */
+	public String getName() {
+		return name;
+	}
+
+	/** Whether the current start tag is an empty element tag, i.e. ends with "/>". */
+	public boolean isEmptyElement() {
+		return empty;
+	}
+
+	/** Input offset of the first byte of the current tag. */
+	public long getTagStart() {
+		return base + tagStart;
+	}
+
+	/** Input offset after the last byte of the current tag. */
+	public long getTagEnd() {
+		return base + tagEnd;
+	}
+
+	public int getAttributeCount() {
+		return numAttrs;
+	}
+
+	/** Returns the index of an attribute of the current start tag, or -1. */
+	public int getAttributeIndex(String aName)
+	{
+		for(int i = 0; i < numAttrs; i++) {
+			if(equalsAscii(attrs[4 * i], attrs[4 * i + 1], aName))
+				return i;
+		}
+		return -1;
+	}
+
+	public String getAttributeName(int i) {
+		return intern(attrs[4 * i], attrs[4 * i + 1]);
+	}
+
+	public String getAttributeValue(int i) throws IOException {
+		return decode(attrs[4 * i + 2], attrs[4 * i + 3]);
+	}
+
+	/** Returns the value of an attribute of the current start tag, or null. */
+	public String getAttributeValue(String aName) throws IOException
+	{
+		int i = getAttributeIndex(aName);
+		return i < 0 ? null : getAttributeValue(i);
+	}
+
+	/** Checks whether an attribute value starts with the given ASCII prefix, without decoding it. */
+	public boolean attributeValueStartsWith(int i, String prefix)
+	{
+		int start = attrs[4 * i + 2];
+		int end = attrs[4 * i + 3];
+		return end - start >= prefix.length() && equalsAscii(start, start + prefix.length(), prefix);
+	}
+
+	/**
+	 * Copies the input bytes from the copy position up to the given input offset,
+	 * which must be in the current tag or before.
+	 */
+	public void copyTo(XmlWriter out, long offset) throws IOException
+	{
+		int end = (int)(offset - base);
+		if(end > copyPos) {
+			out.write(buf, copyPos, end - copyPos);
+			copyPos = end;
+		}
+	}
+
+	//===========================================================
+	// Buffer handling
+	//===========================================================
+
+	/** Discards the bytes before the copy position, if that frees a good part of the buffer. */
+	private void compact()
+	{
+		if(copyPos < buf.length / 2)
+			return;
+		System.arraycopy(buf, copyPos, buf, 0, len - copyPos);
+		len -= copyPos;
+		pos -= copyPos;
+		base += copyPos;
+		tagStart = tagEnd = copyPos = 0;
+		numAttrs = 0;
+	}
+
+	/** Returns the byte at buffer index i, reading more input as necessary. Returns -1 at the end of the input. */
+	private int byteAt(int i) throws IOException
+	{
+		while(i >= len) {
+			if(len == buf.length)
+				buf = Arrays.copyOf(buf, buf.length * 2);
+			int n = in.read(buf, len, buf.length - len);
+			if(n < 0)
+				return -1;
+			len += n;
+		}
+		return buf[i] & 0xff;
+	}
+
+	/** Like byteAt, but fails at the end of the input. */
+	private int requireByte(int i) throws IOException
+	{
+		int c = byteAt(i);
+		if(c < 0)
+			throw new IOException("Unexpected end of XML input at offset " + (base + i));
+		return c;
+	}
+
+	private IOException malformed(int i) {
+		return new IOException("Malformed XML at offset " + (base + i));
+	}
+
+	private void expect(int i, char c) throws IOException
+	{
+		if(requireByte(i) != c)
+			throw malformed(i);
+	}
+
+	private static boolean isSpace(int c) {
+		return c == ' ' || c == '\n' || c == '\t' || c == '\r';
+	}
+
+	private int skipSpace(int i) throws IOException
+	{
+		while(isSpace(requireByte(i)))
+			i++;
+		return i;
+	}
+
+	private boolean startsWith(int i, String s) throws IOException
+	{
+		for(int k = 0; k < s.length(); k++) {
+			if(byteAt(i + k) != s.charAt(k))
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the index after the next occurrence of s. */
+	private int skipPast(int i, String s) throws IOException
+	{
+		while(!startsWith(i, s)) {
+			requireByte(i);
+			i++;
+		}
+		return i + s.length();
+	}
+
+	/** Skips a declaration like <!DOCTYPE ...>, including an internal subset in brackets. */
+	private int skipDeclaration(int i) throws IOException
+	{
+		int depth = 0;
+		while(true) {
+			int c = requireByte(i++);
+			if(c == '"' || c == '\'') {
+				while(requireByte(i) != c)
+					i++;
+				i++;
+			}
+			else if(c == '[')
+				depth++;
+			else if(c == ']')
+				depth--;
+			else if(c == '>' && depth == 0)
+				return i;
+		}
+	}
+
+	/** Returns the end of the name starting at i. */
+	private int scanName(int i) throws IOException
+	{
+		int start = i;
+		while(true) {
+			int c = requireByte(i);
+			if(isSpace(c) || c == '>' || c == '/' || c == '=')
+				break;
+			i++;
+		}
+		if(i == start)
+			throw malformed(i);
+		return i;
+	}
+
+	private void scanStartTag(int i) throws IOException
+	{
+		int j = scanName(i);
+		name = intern(i, j);
+		numAttrs = 0;
+		while(true) {
+			j = skipSpace(j);
+			int c = buf[j];
+			if(c == '>') {
+				empty = false;
+				break;
+			}
+			if(c == '/') {
+				expect(++j, '>');
+				empty = true;
+				break;
+			}
+			int nameStart = j;
+			j = scanName(j);
+			int nameEnd = j;
+			j = skipSpace(j);
+			expect(j, '=');
+			j = skipSpace(j + 1);
+			int quote = buf[j];
+			if(quote != '"' && quote != '\'')
+				throw malformed(j);
+			int valueStart = ++j;
+			while(requireByte(j) != quote) {
+				if(buf[j] == '<')
+					throw malformed(j);
+				j++;
+			}
+			if(4 * numAttrs + 4 > attrs.length)
+				attrs = Arrays.copyOf(attrs, attrs.length * 2);
+			attrs[4 * numAttrs] = nameStart;
+			attrs[4 * numAttrs + 1] = nameEnd;
+			attrs[4 * numAttrs + 2] = valueStart;
+			attrs[4 * numAttrs + 3] = j;
+			numAttrs++;
+			j++;
+		}
+		tagEnd = pos = j + 1;
+	}
+
+	//===========================================================
+	// Decoding
+	//===========================================================
+
+	private boolean equalsAscii(int start, int end, String s)
+	{
+		if(end - start != s.length())
+			return false;
+		for(int k = 0; k < s.length(); k++) {
+			if(buf[start + k] != s.charAt(k))
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the name in the given range, reusing the string if the name was seen before. */
+	private String intern(int start, int end)
+	{
+		int n = end - start;
+		for(int k = 0; k < numNames; k++) {
+			byte[] b = nameBytes[k];
+			if(b.length != n)
+				continue;
+			int m = 0;
+			while(m < n && b[m] == buf[start + m])
+				m++;
+			if(m == n)
+				return names[k];
+		}
+		String s = new String(buf, start, n, UTF8);
+		if(numNames < MAX_NAMES) {
+			names[numNames] = s;
+			nameBytes[numNames] = Arrays.copyOfRange(buf, start, end);
+			numNames++;
+		}
+		return s;
+	}
+
+	/** Decodes an attribute value, replacing references and normalizing white space. */
+	private String decode(int start, int end) throws IOException
+	{
+		try {
+			return decodeValue(buf, start, end);
+		}
+		catch(IOException e) {
+			throw new IOException(e.getMessage() + " at offset " + (base + start));
+		}
+	}
+
+	/**
+	 * Decodes an attribute value from UTF-8 bytes, replacing references and
+	 * normalizing white space.
+	 */
+	static String decodeValue(byte[] b, int start, int end) throws IOException
+	{
+		int i = start;
+		while(i < end && b[i] != '&' && b[i] != '\n' && b[i] != '\t' && b[i] != '\r')
+			i++;
+		if(i == end)
+			return new String(b, start, end - start, UTF8);
+
+		StringBuilder sb = new StringBuilder(end - start);
+		int run = start;
+		for(; i < end; i++) {
+			int c = b[i];
+			if(c != '&' && c != '\n' && c != '\t' && c != '\r')
+				continue;
+			sb.append(new String(b, run, i - run, UTF8));
+			if(c == '&') {
+				int semi = i + 1;
+				while(semi < end && b[semi] != ';')
+					semi++;
+				if(semi == end)
+					throw new IOException("Unterminated reference in attribute value");
+				appendReference(sb, b, i + 1, semi);
+				i = semi;
+			}
+			else {
+				sb.append(' ');
+				if(c == '\r' && i + 1 < end && b[i + 1] == '\n')
+					i++; // line end \r\n counts as one
+			}
+			run = i + 1;
+		}
+		sb.append(new String(b, run, end - run, UTF8));
+		return sb.toString();
+	}
+
+	private static void appendReference(StringBuilder sb, byte[] b, int start, int end) throws IOException
+	{
+		String ref = new String(b, start, end - start, UTF8);
+		if(ref.equals("amp"))
+			sb.append('&');
+		else if(ref.equals("lt"))
+			sb.append('<');
+		else if(ref.equals("gt"))
+			sb.append('>');
+		else if(ref.equals("quot"))
+			sb.append('"');
+		else if(ref.equals("apos"))
+			sb.append('\'');
+		else {
+			try {
+				if(ref.startsWith("#x"))
+					sb.appendCodePoint(Integer.parseInt(ref.substring(2), 16));
+				else if(ref.startsWith("#"))
+					sb.appendCodePoint(Integer.parseInt(ref.substring(1)));
+				else
+					throw new IOException("Unknown entity &" + ref + ";");
+			}
+			catch(IllegalArgumentException e) {
+				throw new IOException("Invalid character reference &" + ref + ";");
+			}
+		}
+	}
+}
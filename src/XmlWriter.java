@@ -0,0 +1,258 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes XML output as UTF-8. The characters are encoded directly into a
+ * reusable direct buffer, which is written to the channel when it is full.
+ * Apart from the escaping of the XML special characters, nothing is converted,
+ * and no objects are created while writing.
+ */
+public class XmlWriter {
+
+	static final int BUFFER_SIZE = 1 << 16;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	private final byte[] digits = new byte[20];
+
+	public XmlWriter(WritableByteChannel channel)
+	{
+		this.channel = channel;
+	}
+
+	/** Writes a string without escaping. */
+	public XmlWriter write(String s) throws IOException
+	{
+		encode(s, 0, s.length());
+		return this;
+	}
+
+	/** Writes a single ASCII character. */
+	public XmlWriter write(char c) throws IOException
+	{
+		if(!buf.hasRemaining())
+			flushBuffer();
+		buf.put((byte)c);
+		return this;
+	}
+
+	/** Writes a decimal number. */
+	public XmlWriter write(long v) throws IOException
+	{
+		if(v < 0) {
+			write('-');
+			if(v == Long.MIN_VALUE) // cannot be negated
+				return write("9223372036854775808");
+			v = -v;
+		}
+		int n = digits.length;
+		do {
+			digits[--n] = (byte)('0' + v % 10);
+			v /= 10;
+		} while(v != 0);
+		ensure(digits.length - n);
+		buf.put(digits, n, digits.length - n);
+		return this;
+	}
+
+	/** Writes bytes that are already encoded as UTF-8. */
+	public XmlWriter write(byte[] b, int off, int len) throws IOException
+	{
+		if(len > buf.remaining()) {
+			flushBuffer();
+			if(len > BUFFER_SIZE / 2) {
+				ByteBuffer wrapped = ByteBuffer.wrap(b, off, len);
+				while(wrapped.hasRemaining())
+					channel.write(wrapped);
+				return this;
+			}
+		}
+		buf.put(b, off, len);
+		return this;
+	}
+
+	/** Writes the remaining bytes of a buffer, which are already encoded as UTF-8. */
+	public XmlWriter write(ByteBuffer src) throws IOException
+	{
+		if(src.remaining() > buf.remaining()) {
+			flushBuffer();
+			if(src.remaining() > BUFFER_SIZE / 2) {
+				while(src.hasRemaining())
+					channel.write(src);
+				return this;
+			}
+		}
+		buf.put(src);
+		return this;
+	}
+
+	/** Writes a text or attribute value, escaping the XML special characters. */
+	public XmlWriter writeEscaped(CharSequence s) throws IOException
+	{
+		int len = s.length();
+		int start = 0;
+		for(int i = 0; i < len; i++) {
+			String entity;
+			switch(s.charAt(i)) {
+				case '&': entity = "&amp;"; break;
+				case '<': entity = "&lt;"; break;
+				case '>': entity = "&gt;"; break;
+				case '"': entity = "&quot;"; break;
+				case '\'': entity = "&apos;"; break;
+				default: continue;
+			}
+			// copy the run without special characters, then the entity
+			encode(s, start, i);
+			encode(entity, 0, entity.length());
+			start = i + 1;
+		}
+		encode(s, start, len);
+		return this;
+	}
+
+	/** Writes a coordinate given in nanodegrees, with up to 7 decimals. */
+	public XmlWriter writeCoordinate(long nano) throws IOException
+	{
+		long units = (nano >= 0 ? nano + 50 : nano - 50) / 100;
+		if(units < 0) {
+			write('-');
+			units = -units;
+		}
+		write(units / 10000000);
+		long frac = units % 10000000;
+		if(frac != 0) {
+			int n = 7;
+			while(frac % 10 == 0) {
+				frac /= 10;
+				n--;
+			}
+			write('.');
+			for(long p = pow10(n - 1); p > 0; p /= 10)
+				write((char)('0' + (frac / p) % 10));
+		}
+		return this;
+	}
+
+	private static long pow10(int n) {
+		long p = 1;
+		for(int i = 0; i < n; i++)
+			p *= 10;
+		return p;
+	}
+
+	/** Writes a timestamp in milliseconds as ISO 8601 date in UTC. */
+	public XmlWriter writeTimestamp(long millis) throws IOException
+	{
+		long secs = floorDiv(millis, 1000);
+		long days = floorDiv(secs, 86400);
+		int secOfDay = (int)(secs - days * 86400);
+		// civil date from days since 1970-01-01
+		long z = days + 719468;
+		long era = floorDiv(z, 146097);
+		long doe = z - era * 146097;
+		long yoe = (doe - doe / 1460 + doe / 36524 - doe / 146096) / 365;
+		long doy = doe - (365 * yoe + yoe / 4 - yoe / 100);
+		long mp = (5 * doy + 2) / 153;
+		int day = (int)(doy - (153 * mp + 2) / 5 + 1);
+		int month = (int)(mp < 10 ? mp + 3 : mp - 9);
+		long year = yoe + era * 400 + (month <= 2 ? 1 : 0);
+		write(year);
+		write('-');
+		write2(month);
+		write('-');
+		write2(day);
+		write('T');
+		write2(secOfDay / 3600);
+		write(':');
+		write2(secOfDay / 60 % 60);
+		write(':');
+		write2(secOfDay % 60);
+		return write('Z');
+	}
+
+	private static long floorDiv(long a, long b) {
+		long q = a / b;
+		return (a % b != 0 && (a < 0) != (b < 0)) ? q - 1 : q;
+	}
+
+	private void write2(int v) throws IOException {
+		write((char)('0' + v / 10));
+		write((char)('0' + v % 10));
+	}
+
+	/** Writes the buffered output to the channel. */
+	public void flush() throws IOException
+	{
+		flushBuffer();
+	}
+
+	public void close() throws IOException
+	{
+		flushBuffer();
+		channel.close();
+	}
+
+	private void flushBuffer() throws IOException
+	{
+		buf.flip();
+		while(buf.hasRemaining())
+			channel.write(buf);
+		buf.clear();
+	}
+
+	private void ensure(int n) throws IOException
+	{
+		if(buf.remaining() < n)
+			flushBuffer();
+	}
+
+	/** Encodes the characters from start to end as UTF-8. */
+	private void encode(CharSequence s, int start, int end) throws IOException
+	{
+		int i = start;
+		while(i < end) {
+			// At most 3 bytes per char; a surrogate pair takes 4 bytes for 2 chars.
+			ensure(Math.min(end - i, BUFFER_SIZE / 4) * 3 + 1);
+			int stop = Math.min(end, i + BUFFER_SIZE / 4);
+			for(; i < stop; i++) {
+				char c = s.charAt(i);
+				if(c < 0x80)
+					buf.put((byte)c);
+				else if(c < 0x800) {
+					buf.put((byte)(0xc0 | (c >> 6)));
+					buf.put((byte)(0x80 | (c & 0x3f)));
+				}
+				else if(Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+					int cp = Character.toCodePoint(c, s.charAt(++i));
+					buf.put((byte)(0xf0 | (cp >> 18)));
+					buf.put((byte)(0x80 | ((cp >> 12) & 0x3f)));
+					buf.put((byte)(0x80 | ((cp >> 6) & 0x3f)));
+					buf.put((byte)(0x80 | (cp & 0x3f)));
+				}
+				else if(Character.isSurrogate(c))
+					buf.put((byte)'?'); // unpaired surrogate
+				else {
+					buf.put((byte)(0xe0 | (c >> 12)));
+					buf.put((byte)(0x80 | ((c >> 6) & 0x3f)));
+					buf.put((byte)(0x80 | (c & 0x3f)));
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package kanaconv;
+
+/**
+ * Script classes of characters. The classes of the characters of the Basic
+ * Multilingual Plane are computed once into a table, so that a character is
+ * classified by a single array load. A character may belong to several
+ * classes, which are given as bits.
+ */
+public final class CharClass {
+
+    /** Kanji: the CJK Unified Ideographs block, and the supplementary ideographic planes. */
+    public static final int KANJI = 0x1;
+    /** The Hiragana block. */
+    public static final int HIRAGANA = 0x2;
+    /** The Katakana block. */
+    public static final int KATAKANA = 0x4;
+    /**
+     * Characters which continue a japanese word when they follow another
+     * character: the iteration mark kurikaesi, shime and the small katakana
+     * ka and ke.
+     */
+    public static final int CONTINUES_JAPANESE = 0x8;
+    /** East Asian scripts from U+2E80: CJK symbols, kana and ideographs. */
+    public static final int ASIAN = 0x10;
+    /** East Asian scripts from U+3200, excluding kana and CJK punctuation. */
+    public static final int IDEOGRAPHIC = 0x20;
+
+    private static final char[] TABLE = createTable();
+
+    private CharClass() {
+    }
+
+    private static char[] createTable() {
+        char[] t = new char[0x10000];
+        set(t, 0x4e00, 0x9fff, KANJI);
+        set(t, 0x3040, 0x309f, HIRAGANA);
+        set(t, 0x30a0, 0x30ff, KATAKANA);
+        set(t, 0x3005, 0x3006, CONTINUES_JAPANESE);
+        set(t, 0x30f5, 0x30f6, CONTINUES_JAPANESE);
+        // Surrogates are accepted, as they mostly encode ideographs
+        set(t, 0x2e80, 0x9fff, ASIAN);
+        set(t, 0xd800, 0xdfff, ASIAN);
+        set(t, 0x3200, 0x9fff, IDEOGRAPHIC);
+        set(t, 0xd800, 0xdfff, IDEOGRAPHIC);
+        return t;
+    }
+
+    private static void set(char[] t, int first, int last, int classes) {
+        for (int ch = first; ch <= last; ch++) {
+            t[ch] |= classes;
+        }
+    }
+
+    /**
+     * Returns the classes of a character. A surrogate is classified as
+     * ASIAN and IDEOGRAPHIC; use of(int) for the code point.
+     */
+    public static int of(char ch) {
+        return TABLE[ch];
+    }
+
+    /** Returns the classes of a code point, or 0 if it is negative. */
+    public static int of(int codePoint) {
+        if (codePoint < 0x10000) {
+            return codePoint < 0 ? 0 : TABLE[codePoint];
+        }
+        // Supplementary ideographic planes
+        if (codePoint >= 0x20000 && codePoint < 0x40000) {
+            return KANJI | ASIAN | IDEOGRAPHIC;
+        }
+        return 0;
+    }
+
+    /** Returns whether a code point belongs to any of the given classes. */
+    public static boolean is(int codePoint, int classes) {
+        return (of(codePoint) & classes) != 0;
+    }
+
+}
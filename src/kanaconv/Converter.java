@@ -17,8 +17,6 @@
 
 package kanaconv;
   
-import java.io.Writer;
-import java.io.IOException;
 
 /**
  * An object that implements the Converter interface can convert a string.
@@ -35,8 +33,7 @@ interface Converter {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    boolean convert(KanjiInput input, Writer output) throws IOException;
+    boolean convert(KanjiInput input, KanjiOutput output);
 
 }
@@ -17,8 +17,6 @@
 
 package kanaconv;
 
-import java.io.Writer;
-import java.io.IOException;
 
 /**
  * This class is a default implementation of Converter interface.
@@ -35,15 +33,13 @@ class DefaultConverter implements Converter {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    public boolean convert(KanjiInput input, Writer output)
-        throws IOException {
+    public boolean convert(KanjiInput input, KanjiOutput output) {
         int ch = input.get();
         if (ch < 0) {
             return false;
         }
-        Character.UnicodeBlock pblock = Character.UnicodeBlock.of((char)ch);
+        boolean pjapanese = isJapanese(ch);
         while (true) {
             input.consume(1);
             output.write((char)ch);
@@ -51,27 +47,17 @@ class DefaultConverter implements Converter {
             if (ch < 0) {
                 break;
             }
-            Character.UnicodeBlock block;
-            switch (ch) {
-            case '\u3005':	// kurikaesi
-            case '\u3006':	// shime
-            case '\u30f5':	// katakana small ka
-            case '\u30f6':	// katakana small ke
-                block = Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS;
-                break;
-            default:
-                block = Character.UnicodeBlock.of((char)ch);
-                break;
-            }
-            if (isJapanese(block) != isJapanese(pblock)) {
+            boolean japanese = isJapanese(ch)
+                || CharClass.is(ch, CharClass.CONTINUES_JAPANESE);
+            if (japanese != pjapanese) {
             	break;
             }
         }
         return true;
     }
     
-    private boolean isJapanese(Character.UnicodeBlock block) {
-    	return block.equals(Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS) || block.equals(Character.UnicodeBlock.HIRAGANA) || block.equals(Character.UnicodeBlock.KATAKANA);
+    private boolean isJapanese(int ch) {
+    	return CharClass.is(ch, CharClass.KANJI | CharClass.HIRAGANA | CharClass.KATAKANA);
     }
 
 }
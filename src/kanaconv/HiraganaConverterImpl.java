@@ -17,8 +17,6 @@
 
 package kanaconv;
 
-import java.io.Writer;
-import java.io.IOException;
 
 /**
  * This class implements conversion methods that converts a Hiragana word.
@@ -36,9 +34,8 @@ class HiraganaConverterImpl {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    boolean toKatakana(KanjiInput input, Writer output) throws IOException {
+    boolean toKatakana(KanjiInput input, KanjiOutput output) {
         if (!isHiragana(input.get())) {
             return false;
         }
@@ -75,9 +72,8 @@ class HiraganaConverterImpl {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    boolean toHiragana(KanjiInput input, Writer output) throws IOException {
+    boolean toHiragana(KanjiInput input, KanjiOutput output) {
         int ch = input.get();
         if (!isHiragana(ch)) {
             return false;
@@ -104,14 +100,10 @@ class HiraganaConverterImpl {
      * Returns whether the specified character is hiragana.
      */
     private static boolean isHiragana(int ch) {
-        if (ch < 0) {
-            return false;
-        }
         if (ch == '\u30fc') {	// prolonged sound mark
             return true;
         }
-        Character.UnicodeBlock block = Character.UnicodeBlock.of((char)ch);
-        return block.equals(Character.UnicodeBlock.HIRAGANA);
+        return CharClass.is(ch, CharClass.HIRAGANA);
     }
 
 }
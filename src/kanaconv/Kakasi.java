@@ -16,12 +16,6 @@ package kanaconv;
  * GNU General Public License for more details.
  */
 
-
-
-import java.io.IOException;
-import java.io.StringWriter;
-import java.io.Writer;
-
 /**
  * This class is the KAKASI/JAVA main class.
  * 
@@ -52,6 +46,7 @@ public class Kakasi {
 
     private final KanjiInput input = new KanjiInput();
     private final KanjiOutput output = new KanjiOutput();
+    private final StringBuilder result = new StringBuilder();
 
     private final HiraganaConverterImpl hiraganaConverterImpl;
     private final KatakanaConverterImpl katakanaConverterImpl;
@@ -94,23 +89,20 @@ public class Kakasi {
     private Converter createHiraganaConverter(String characterSet) {
         if (characterSet.equals(ASCII)) {
             return new Converter() {
-                public boolean convert(KanjiInput input, Writer output)
-                    throws IOException {
+                public boolean convert(KanjiInput input, KanjiOutput output) {
                     return kanaToRomaConverterImpl.convertHiragana(input,
                                                                    output);
                 }
             };
         } else if (characterSet.equals(HIRAGANA)) {
             return new Converter() {
-                public boolean convert(KanjiInput input, Writer output)
-                    throws IOException {
+                public boolean convert(KanjiInput input, KanjiOutput output) {
                     return hiraganaConverterImpl.toHiragana(input, output);
                 }
             };
         } else if (characterSet.equals(KATAKANA)) {
             return new Converter() {
-                public boolean convert(KanjiInput input, Writer output)
-                    throws IOException {
+                public boolean convert(KanjiInput input, KanjiOutput output) {
                     return hiraganaConverterImpl.toKatakana(input, output);
                 }
             };
@@ -144,23 +136,20 @@ public class Kakasi {
     private Converter createKatakanaConverter(String characterSet) {
         if (characterSet.equals(ASCII)) {
             return new Converter() {
-                public boolean convert(KanjiInput input, Writer output)
-                    throws IOException {
+                public boolean convert(KanjiInput input, KanjiOutput output) {
                     return kanaToRomaConverterImpl.convertKatakana(input,
                                                                    output);
                 }
             };
         } else  if (characterSet.equals(HIRAGANA)) {
             return new Converter() {
-                public boolean convert(KanjiInput input, Writer output)
-                    throws IOException {
+                public boolean convert(KanjiInput input, KanjiOutput output) {
                     return katakanaConverterImpl.toHiragana(input, output);
                 }
             };
         } else if (characterSet.equals(KATAKANA)) {
             return new Converter() {
-                public boolean convert(KanjiInput input, Writer output)
-                    throws IOException {
+                public boolean convert(KanjiInput input, KanjiOutput output) {
                     return katakanaConverterImpl.toKatakana(input, output);
                 }
             };
@@ -244,34 +233,45 @@ public class Kakasi {
      *
      * @param string  the input string to process.
      * @return  the result string.
-     * @exception  IOException  if an I/O error occurred.
      */
-    public synchronized String doString(String string) throws IOException {
-        input.setInputString(string);
-        StringWriter writer = new StringWriter(string.length() * 2);
-        output.setWriter(writer);
+    public String doString(String string) {
+        result.setLength(0);
+        doString(string, 0, string.length(), result);
+        return result.toString();
+    }
+
+    /**
+     * Processes a range of the specified character sequence, and appends
+     * the result to a builder. Nothing else is allocated.
+     *
+     * @param chars  the input character sequence.
+     * @param start  the index of the first character to process.
+     * @param end  the index after the last character to process.
+     * @param builder  the builder to which the result is appended.
+     */
+    public void doString(CharSequence chars, int start, int end, StringBuilder builder) {
+        input.setInput(chars, start, end);
+        output.setOutput(builder);
         run();
-        return writer.toString();
     }
 
     /**
      * Runs the conversion process.
      *
-     * @exception  IOException  if an I/O error occurred.
      */
-    public synchronized void run() throws IOException {
+    public void run() {
         while (true) {
             int ch = input.get();
             if (ch < 0) {
                 break;
             }
             Converter converter = null;
-            Character.UnicodeBlock block = Character.UnicodeBlock.of((char)ch);
-            if (block.equals(Character.UnicodeBlock.CJK_UNIFIED_IDEOGRAPHS)) {
+            int classes = CharClass.of(ch);
+            if ((classes & CharClass.KANJI) != 0) {
                 converter = kanjiConverter;
-            } else if (block.equals(Character.UnicodeBlock.HIRAGANA)) {
+            } else if ((classes & CharClass.HIRAGANA) != 0) {
                 converter = hiraganaConverter;
-            } else if (block.equals(Character.UnicodeBlock.KATAKANA)) {
+            } else if ((classes & CharClass.KATAKANA) != 0) {
                 converter = katakanaConverter;
             }
             if (converter == null) {
@@ -285,7 +285,6 @@ public class Kakasi {
                 }
             }
         }
-        output.flush();
     }
 
 }
@@ -17,14 +17,9 @@
 
 package kanaconv;
 
-import java.io.Writer;
-import java.io.IOException;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.List;
-import java.util.LinkedList;
-import java.util.Iterator;
-import java.util.ListIterator;
 
 /**
  * This class implements conversion methods that converts a Hiranana/Katakana
@@ -35,85 +30,147 @@ import java.util.ListIterator;
  */
 class KanaToRomaConverterImpl {
 
-    private static class Table {
+    /**
+     * A conversion table. The entries are compiled into a trie, which is
+     * stored in arrays: the children of a node are indexed by the offset of
+     * their kana from FIRST_KANA. The longest entry that matches the input
+     * is found without allocating objects.
+     */
+    static class Table {
+
+        /** Range of the characters in the tables: the hiragana and katakana blocks. */
+        static final int FIRST_KANA = 0x3040;
+        static final int NUM_KANA = 0xc0;
+
+        private Map<String, String> entries = new HashMap<String, String>();
 
-        final Map<Character, List<Entry>> table = new HashMap<Character, List<Entry>>();
+        private int[] childIndex;    // per node: start of its children, or -1
+        private int[] children;      // per child slot: child node, or 0
+        private String[] romajiOf;   // per node: romaji, or null
+        private byte[] lengthOf;     // per node: length of its kana
+        private int maxLength;       // of the kana of all entries
 
         void add(String kana, String romaji) {
-            Character key = new Character(kana.charAt(0));
-            Entry newEntry = new Entry(kana.substring(1), romaji);
+            entries.put(kana, romaji);
+        }
 
-            List<Entry> list = (List<Entry>)table.get(key);
-            if (list == null) {
-                list = new LinkedList<Entry>();
-                list.add(newEntry);
-                table.put(key, list);
-            } else {
-                int newLength = newEntry.getKanaLength();
-                ListIterator<Entry> iterator = list.listIterator();
-                while (iterator.hasNext()) {
-                    Entry entry = (Entry)iterator.next();
-                    if (newLength >= entry.getKanaLength()) {
-                        iterator.previous();
-                        break;
+        /** Builds the trie from the added entries. */
+        void compile() {
+            int numNodes = 1;
+            int numChildren = 0;
+            childIndex = new int[16];
+            children = new int[NUM_KANA];
+            romajiOf = new String[16];
+            lengthOf = new byte[16];
+            childIndex[0] = -1;
+            for (Map.Entry<String, String> e : entries.entrySet()) {
+                String kana = e.getKey();
+                int node = 0;
+                for (int i = 0; i < kana.length(); i++) {
+                    int offset = kana.charAt(i) - FIRST_KANA;
+                    if (offset < 0 || offset >= NUM_KANA) {
+                        throw new IllegalArgumentException("Not a kana: " + kana);
+                    }
+                    if (childIndex[node] < 0) {
+                        if (numChildren + NUM_KANA > children.length) {
+                            children = Arrays.copyOf(children, 2 * children.length);
+                        }
+                        childIndex[node] = numChildren;
+                        numChildren += NUM_KANA;
+                    }
+                    int slot = childIndex[node] + offset;
+                    if (children[slot] == 0) {
+                        if (numNodes == romajiOf.length) {
+                            childIndex = Arrays.copyOf(childIndex, 2 * numNodes);
+                            romajiOf = Arrays.copyOf(romajiOf, 2 * numNodes);
+                            lengthOf = Arrays.copyOf(lengthOf, 2 * numNodes);
+                        }
+                        childIndex[numNodes] = -1;
+                        lengthOf[numNodes] = (byte)(i + 1);
+                        children[slot] = numNodes++;
                     }
+                    node = children[slot];
                 }
-                iterator.add(newEntry);
+                romajiOf[node] = e.getValue();
+                maxLength = Math.max(maxLength, kana.length());
             }
+            childIndex = Arrays.copyOf(childIndex, numNodes);
+            romajiOf = Arrays.copyOf(romajiOf, numNodes);
+            lengthOf = Arrays.copyOf(lengthOf, numNodes);
+            children = Arrays.copyOf(children, numChildren);
+            entries = null;
         }
 
-        String get(KanjiInput input) throws IOException {
+        /**
+         * Returns the romaji of the longest entry matching the input, and
+         * consumes its kana. Returns null if no entry matches.
+         */
+        String get(KanjiInput input) {
             int ch = input.get();
-            if (ch < 0) {
-                return null;
+            String romaji = null;
+            int romajiLength = 0;
+            int node = 0;
+            for (int length = 1; ch >= 0; length++) {
+                int offset = ch - FIRST_KANA;
+                if (offset < 0 || offset >= NUM_KANA || childIndex[node] < 0) {
+                    break;
+                }
+                node = children[childIndex[node] + offset];
+                if (node == 0) {
+                    break;
+                }
+                if (romajiOf[node] != null) {
+                    romaji = romajiOf[node];
+                    romajiLength = length;
+                }
+                if (childIndex[node] < 0) {
+                    break;
+                }
+                ch = input.more();
             }
-            List<?> list = (List<?>)table.get(new Character((char)ch));
-            if (list == null) {
-                return null;
+            if (romaji != null) {
+                input.consume(romajiLength);
             }
-            String rest = null;
-            int restLength = 0;
-            Iterator<?> iterator = list.iterator();
-            while (iterator.hasNext()) {
-                Entry entry = (Entry)iterator.next();
-                int length = entry.getKanaLength();
-                if (length > 0 && rest == null) {
-                    char[] chars = new char[length];
-                    restLength = input.more(chars);
-                    rest = new String(chars, 0, restLength);
+            return romaji;
+        }
+
+        /**
+         * Finds the longest entry matching the characters from start, which
+         * are read up to end or to the first whitespace. Returns the node of
+         * the entry, or 0 if no entry matches.
+         */
+        int match(CharSequence text, int start, int end) {
+            int match = 0;
+            int node = 0;
+            for (int i = start; i < end; i++) {
+                int offset = text.charAt(i) - FIRST_KANA;
+                if (offset < 0 || offset >= NUM_KANA || childIndex[node] < 0) {
+                    break;
                 }
-                if (length > restLength) {
-                    continue;
+                node = children[childIndex[node] + offset];
+                if (node == 0) {
+                    break;
                 }
-                String romaji = entry.getRomajiFor(rest);
-                if (romaji != null) {
-                    input.consume(length + 1);
-                    return romaji;
+                if (romajiOf[node] != null) {
+                    match = node;
                 }
             }
-            return null;
+            return match;
         }
 
-    }
-
-    private static class Entry {
-
-        final String kana;
-        final String romaji;
-
-        Entry(String kana, String romaji) {
-            this.kana = kana;
-            this.romaji = romaji;
+        /** Returns the romaji of an entry found by match(). */
+        String romaji(int node) {
+            return romajiOf[node];
         }
 
-        int getKanaLength() {
-            return kana.length();
+        /** Returns the length of the longest kana of the entries. */
+        int maxLength() {
+            return maxLength;
         }
 
-        String getRomajiFor(String string) {
-            return
-                getKanaLength() == 0 ||
-                (string != null && string.startsWith(kana)) ? romaji : null;
+        /** Returns the length of the kana of an entry found by match(). */
+        int length(int node) {
+            return lengthOf[node];
         }
 
     }
@@ -126,7 +183,7 @@ class KanaToRomaConverterImpl {
     /**
      * Gets the Hiragana to Hepburn type romaji conversion table.
      */
-    private static Table getHiraganaToHepburnTable() {
+    private static synchronized Table getHiraganaToHepburnTable() {
         if (hiraganaToHepburn == null) {
             hiraganaToHepburn = new Table();
             hiraganaToHepburn.add("\u3041", "a");
@@ -354,6 +411,7 @@ class KanaToRomaConverterImpl {
             hiraganaToHepburn.add("\u3093\u3046", "n'u");
             hiraganaToHepburn.add("\u3093\u3048", "n'e");
             hiraganaToHepburn.add("\u3093\u304a", "n'o");
+            hiraganaToHepburn.compile();
         }
         return hiraganaToHepburn;
     }
@@ -361,7 +419,7 @@ class KanaToRomaConverterImpl {
     /**
      * Gets the Hiragana to Kunrei type romaji convertesion table.
      */
-    private static Table getHiraganaToKunreiTable() {
+    private static synchronized Table getHiraganaToKunreiTable() {
         if (hiraganaToKunrei == null) {
             hiraganaToKunrei = new Table();
             hiraganaToKunrei.add("\u3041", "a");
@@ -589,6 +647,7 @@ class KanaToRomaConverterImpl {
             hiraganaToKunrei.add("\u3093\u3046", "n'u");
             hiraganaToKunrei.add("\u3093\u3048", "n'e");
             hiraganaToKunrei.add("\u3093\u304a", "n'o");
+            hiraganaToKunrei.compile();
         }
         return hiraganaToKunrei;
     }
@@ -596,7 +655,7 @@ class KanaToRomaConverterImpl {
     /**
      * Gets the Katakana to Hepburn type romaji conversion table.
      */
-    private static Table getKatakanaToHepburnTable() {
+    private static synchronized Table getKatakanaToHepburnTable() {
         if (katakanaToHepburn == null) {
             katakanaToHepburn = new Table();
             katakanaToHepburn.add("\u30a1", "a");
@@ -827,6 +886,7 @@ class KanaToRomaConverterImpl {
             katakanaToHepburn.add("\u30f5", "ka");
             katakanaToHepburn.add("\u30f6", "ke");
             katakanaToHepburn.add("\u30fc", "^");
+            katakanaToHepburn.compile();
         }
         return katakanaToHepburn;
     }
@@ -834,7 +894,7 @@ class KanaToRomaConverterImpl {
     /**
      * Gets the Katakana to Kunrei type romaji conversion table.
      */
-    static Table getKatakanaToKunreiTable() {
+    static synchronized Table getKatakanaToKunreiTable() {
         if (katakanaToKunrei == null) {
             katakanaToKunrei = new Table();
             katakanaToKunrei.add("\u30a1", "a");
@@ -1065,6 +1125,7 @@ class KanaToRomaConverterImpl {
             katakanaToKunrei.add("\u30f5", "ka");
             katakanaToKunrei.add("\u30f6", "ke");
             katakanaToKunrei.add("\u30fc", "^");
+            katakanaToKunrei.compile();
         }
         return katakanaToKunrei;
     }
@@ -1089,7 +1150,7 @@ class KanaToRomaConverterImpl {
      * @see #HEPBURN
      * @see #KUNREI
      */
-    synchronized void setType(int newType) {
+    void setType(int newType) {
         type = newType;
         hiraganaTable = null;
         katakanaTable = null;
@@ -1110,7 +1171,7 @@ class KanaToRomaConverterImpl {
      *
      * @param newMode  new romaji capitalize mode value.
      */
-    synchronized void setCapitalizeMode(boolean newMode) {
+    void setCapitalizeMode(boolean newMode) {
         capitalizeMode = newMode;
         hiraganaTable = null;
         katakanaTable = null;
@@ -1128,7 +1189,7 @@ class KanaToRomaConverterImpl {
      *
      * @param newMode  new romaji upper case mode value.
      */
-    synchronized void setUpperCaseMode(boolean newMode) {
+    void setUpperCaseMode(boolean newMode) {
         upperCaseMode = newMode;
         hiraganaTable = null;
         katakanaTable = null;
@@ -1141,20 +1202,33 @@ class KanaToRomaConverterImpl {
         return upperCaseMode;
     }
 
+    /**
+     * Gets the hiragana conversion table of the given romaji type.
+     */
+    static Table getHiraganaTable(int type) {
+        return type == KUNREI ?
+            getHiraganaToKunreiTable() : getHiraganaToHepburnTable();
+    }
+
+    /**
+     * Gets the katakana conversion table of the given romaji type.
+     */
+    static Table getKatakanaTable(int type) {
+        return type == KUNREI ?
+            getKatakanaToKunreiTable() : getKatakanaToHepburnTable();
+    }
+
     /**
      * Converts hiranaga word to romaji.
      *
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    synchronized boolean convertHiragana(KanjiInput input, Writer output)
-        throws IOException {
+    boolean convertHiragana(KanjiInput input, KanjiOutput output) {
 
         if (hiraganaTable == null) {
-            hiraganaTable = type == KUNREI ?
-                getHiraganaToKunreiTable() : getHiraganaToHepburnTable();
+            hiraganaTable = getHiraganaTable(type);
         }
         return convert(input, output, hiraganaTable);
     }
@@ -1165,14 +1239,11 @@ class KanaToRomaConverterImpl {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    synchronized boolean convertKatakana(KanjiInput input, Writer output)
-        throws IOException {
+    boolean convertKatakana(KanjiInput input, KanjiOutput output) {
 
         if (katakanaTable == null) {
-            katakanaTable = type == KUNREI ?
-                getKatakanaToKunreiTable() : getKatakanaToHepburnTable();
+            katakanaTable = getKatakanaTable(type);
         }
         return convert(input, output, katakanaTable);
     }
@@ -1184,10 +1255,8 @@ class KanaToRomaConverterImpl {
      * @param output  the output writer object.
      * @param table the conversion table.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    private boolean convert(KanjiInput input, Writer output, Table table)
-        throws IOException {
+    private boolean convert(KanjiInput input, KanjiOutput output, Table table) {
 
         String romaji = table.get(input);
         if (romaji == null) {
@@ -17,15 +17,14 @@
 
 package kanaconv;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.Reader;
-import java.io.StringReader;
-import java.io.Writer;
 
 /**
  * An object of this class supplies inputs characters for the conversion.
+ * The input is a range of a character sequence, which is read with a cursor;
+ * reading and consuming characters does not allocate or copy anything.
+ * An object of this class must not be used by several threads at once.
  * 
  * @see Kakasi#getInput()
  * @author  Kawao, Tomoyuki (kawao@kawao.com)
@@ -33,14 +32,15 @@ import java.io.Writer;
  */
 public class KanjiInput {
 
-    private final StringBuffer buffer = new StringBuffer();
-    private int nextIndex;
-
-    private Reader reader;
+    private CharSequence text = "";
+    private int index;          // the next character to be consumed
+    private int end;
+    private int nextIndex;      // the next character returned by more()
 
     private boolean spaceEatMode;
 
-    private final char[] oneCharacter = new char[1];
+    // Copy of the input, for the space eat mode only
+    private StringBuilder buffer = null;
 
     /**
      * The constructor is not public.
@@ -54,17 +54,38 @@ public class KanjiInput {
      * @param string  the string object for input.
      */
     public void setInputString(String string) {
-        setReader(new StringReader(string));
+        setInput(string, 0, string.length());
+    }
+
+    /**
+     * Sets input as a range of the specified character sequence, which must
+     * not be modified during the conversion.
+     *
+     * @param chars  the character sequence.
+     * @param start  the index of the first character.
+     * @param end  the index after the last character.
+     */
+    public void setInput(CharSequence chars, int start, int end) {
+        text = chars;
+        index = start;
+        this.end = end;
+        nextIndex = start;
     }
 
     /**
-     * Sets the reader object.
+     * Sets the reader object. The input is read until its end.
      *
      * @param newReader  new reader object.
+     * @exception  IOException  If an I/O error occurs
      */
-    public synchronized void setReader(Reader newReader) {
-        reader = newReader;
-        buffer.setLength(0);
+    public void setReader(Reader newReader) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        char[] chars = new char[4096];
+        int n;
+        while ((n = newReader.read(chars)) > 0) {
+            sb.append(chars, 0, n);
+        }
+        setInput(sb, 0, sb.length());
     }
 
     /**
@@ -87,34 +108,32 @@ public class KanjiInput {
     /**
      * Gets the input character. 
      *
-     * @return  The character read, or -1 if the end of the stream has been
+     * @return  The character read, or -1 if the end of the input has been
      *           reached
-     * @exception  IOException  If an I/O error occurs
      */
-    synchronized int get() throws IOException {
-        if (reader == null) {
-            setReader(new BufferedReader(new InputStreamReader(System.in)));
-        }
-        if (buffer.length() == 0) {
-            int ch = reader.read();
-            if (ch < 0) {
-                return -1;
-            }
-            buffer.append((char)ch);
-        }
-        nextIndex = 1;
-        return buffer.charAt(0);
+    int get() {
+        nextIndex = index + 1;
+        return index < end ? text.charAt(index) : -1;
     }
 
     /**
      * Gets more input character.
      * 
-     * @return The character read, or -1 if the end of the word or stream has
+     * @return The character read, or -1 if the end of the word or input has
      *         been reached.
-     * @exception  IOException  If an I/O error occurs
      */
-    synchronized int more() throws IOException {
-        return more(oneCharacter) > 0 ? oneCharacter[0] : -1;
+    int more() {
+        for (; nextIndex < end; nextIndex++) {
+            char ch = text.charAt(nextIndex);
+            if (!Character.isWhitespace(ch)) {
+                nextIndex++;
+                return ch;
+            }
+            if (!isSpaceEatMode()) {
+                break;
+            }
+        }
+        return -1;
     }
 
     /**
@@ -122,28 +141,15 @@ public class KanjiInput {
      * 
      * @param chars  destination buffer. 
      * @return  The number of characters.
-     * @exception  IOException  If an I/O error occurs
      */
-    synchronized int more(char[] chars) throws IOException {
-        int bufferLength = buffer.length();
+    int more(char[] chars) {
         int resultLength = 0;
-        for (; resultLength < chars.length; nextIndex++) {
-            if (bufferLength <= nextIndex) {
-                int ch = reader.read();
-                if (ch < 0) {
-                    break;
-                }
-                buffer.append((char)ch);
-                ++bufferLength;
-            }
-            char ch = buffer.charAt(nextIndex);
-            if (Character.isWhitespace(ch)) {
-                if (!isSpaceEatMode()) {
-                    break;
-                }
-            } else {
-                chars[resultLength++] = ch;
+        while (resultLength < chars.length) {
+            int ch = more();
+            if (ch < 0) {
+                break;
             }
+            chars[resultLength++] = (char)ch;
         }
         return resultLength;
     }
@@ -153,63 +159,33 @@ public class KanjiInput {
      *
      * @param length  the length of characters to consume.
      */
-    synchronized void consume(int length) {
+    void consume(int length) {
         if (isSpaceEatMode()) {
-            int start = 0;
-            int end = length;
-            for (int index = 1; index < end; index++) {
-                char ch = buffer.charAt(index);
+            // The whitespace between the consumed characters remains
+            if (text != buffer) {
+                if (buffer == null) {
+                    buffer = new StringBuilder();
+                }
+                buffer.setLength(0);
+                buffer.append(text, index, end);
+                setInput(buffer, 0, buffer.length());
+            }
+            int start = index;
+            int stop = index + length;
+            for (int i = index + 1; i < stop; i++) {
+                char ch = buffer.charAt(i);
                 if (Character.isWhitespace(ch)) {
                     buffer.setCharAt(start++, ch);
-                    end++;
+                    stop++;
                 }
             }
-            buffer.delete(start, end);
+            stop = Math.min(stop, end);
+            buffer.delete(start, stop);
+            end -= stop - start;
         } else {
-            buffer.delete(0, length);
+            index += length;
         }
-        nextIndex = 0;
-    }
-
-    /**
-     * Creates a Writer object that supplies inputs for this object.
-     */
-    Writer createConnectedWriter() {
-        reader = new NullReader();
-        return new ConnectedWriter();
-    }
-
-    /**
-     * Nothing can be read from object of this class.
-     */
-    private static class NullReader extends Reader {
-
-        public int read(char cbuf[], int off, int len) {
-            return -1;
-        }
-
-        public void close() {
-        }
-
-    }
-
-    /**
-     * Writer that supplis inputs to the KanjiInput object.
-     */
-    private class ConnectedWriter extends Writer {
-        
-        public void write(char cbuf[], int off, int len) {
-            synchronized (KanjiInput.this) {
-                buffer.append(cbuf, off, len);
-            }
-        }
-
-        public void flush() {
-        }
-
-        public void close() {
-        }
-
+        nextIndex = index;
     }
 
 }
@@ -17,23 +17,18 @@
 
 package kanaconv;
 
-import java.io.Writer;
-import java.io.BufferedWriter;
-import java.io.OutputStreamWriter;
-import java.io.IOException;
-
 /**
  * An object of this class is used as destination of the conversion.
+ * The output is appended to a StringBuilder, which may be reused.
+ * An object of this class must not be used by several threads at once.
  * 
  * @see Kakasi#getOutput()
  * @author  Kawao, Tomoyuki (kawao@kawao.com)
  * @version $Revision: 1.2 $ $Date: 2003/01/01 08:18:44 $
  */
-public class KanjiOutput extends Writer {
-
-    private Writer writer;
+public class KanjiOutput {
 
-    private boolean autoFlushMode = true;
+    private StringBuilder builder;
 
     private boolean splitMode;
     private boolean lastWasSpace;
@@ -46,39 +41,21 @@ public class KanjiOutput extends Writer {
     }
 
     /**
-     * Sets the writer object.
+     * Sets the builder to which the output is appended.
      *
-     * @param newWriter  new writer object.
+     * @param newBuilder  new builder object.
      */
-    public synchronized void setWriter(Writer newWriter) {
-        writer = newWriter;
+    public void setOutput(StringBuilder newBuilder) {
+        builder = newBuilder;
         lastWasSpace = true;
     }
 
-    /**
-     * Sets the auto flush mode property value. The default value is true.
-     *
-     * @param newMode  if true the output buffer is flushed when a newline
-     *                 character is written.
-     *                 
-     */
-    public void setAutoFlushMode(boolean newMode) {
-        autoFlushMode = newMode;
-    }
-
-    /**
-     * Gets the auto flush mode property value.
-     */
-    public boolean isAutoFlushMode() {
-        return autoFlushMode;
-    }
-
     /**
      * Sets the split mode property value. The default value is false.
      *
      * @param newMode  the new split mode.
      */
-    public synchronized void setSplitMode(boolean newMode) {
+    public void setSplitMode(boolean newMode) {
         splitMode = newMode;
         outSeparator = false;
     }
@@ -93,78 +70,48 @@ public class KanjiOutput extends Writer {
     /**
      * Puts the separator character if the split mode is true.
      */
-    synchronized void putSeparator() {
+    void putSeparator() {
         if (splitMode) {
             outSeparator = true;
         }
     }
 
     /**
-     * Write a portion of an array of characters.
+     * Writes a string.
      *
-     * @param  cbuf  Array of characters
-     * @param  off   Offset from which to start writing characters
-     * @param  len   Number of characters to write
-     * @exception  IOException  If an I/O error occurs
+     * @param str  the string to be written.
      */
-    public void write(char cbuf[], int off, int len) throws IOException {
-        int max = off + len;
-        for (int index = off; index < max; index++) {
-            write(cbuf[index]);
+    public void write(String str) {
+        if (!splitMode) {
+            builder.append(str);
+            return;
+        }
+        for (int index = 0; index < str.length(); index++) {
+            write(str.charAt(index));
         }
     }
 
     /**
      * Write a single character.
      *
-     * @param c  int specifying a character to be written.
-     * @exception  IOException  If an I/O error occurs
+     * @param c  the character to be written.
      */
-    public synchronized void write(int c) throws IOException {
-        if (writer == null) {
-            setWriter(new BufferedWriter(new OutputStreamWriter(System.out)));
-        }
-        if (isSplitMode()) {
-            if (Character.isWhitespace((char)c)) {
+    public void write(char c) {
+        if (splitMode) {
+            if (Character.isWhitespace(c)) {
                 lastWasSpace = true;
                 outSeparator = false;
             } else {
                 if (outSeparator) {
                     outSeparator = false;
                     if (!lastWasSpace) {
-                        writer.write(' ');
+                        builder.append(' ');
                     }
                 }
                 lastWasSpace = false;
             }
         }
-        writer.write(c);
-        if (c == '\n' && isAutoFlushMode()) {
-            flush();
-        }
-    }
-
-    /**
-     * Flush the stream.
-     *
-     * @exception  IOException  If an I/O error occurs
-     */
-    public synchronized void flush() throws IOException {
-        if (writer != null) {
-            writer.flush();
-        }
-    }
-
-    /**
-     * Close the stream.
-     *
-     * @exception  IOException  If an I/O error occurs
-     */
-    public void close() throws IOException {
-        if (writer != null) {
-            writer.close();
-        }
+        builder.append(c);
     }
 
 }
-
@@ -17,8 +17,6 @@
 
 package kanaconv;
 
-import java.io.Writer;
-import java.io.IOException;
 
 /**
  * This class implements conversion methods that converts a Katakana word.
@@ -34,9 +32,8 @@ class KatakanaConverterImpl {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    boolean toHiragana(KanjiInput input, Writer output) throws IOException {
+    boolean toHiragana(KanjiInput input, KanjiOutput output) {
         if (!isKatakana(input.get())) {
             return false;
         }
@@ -68,9 +65,8 @@ class KatakanaConverterImpl {
      * @param input  the input object.
      * @param output  the output writer object.
      * @return  false if no character is converted, otherwise true.
-     * @exception  IOException  if an I/O error occurred.
      */
-    boolean toKatakana(KanjiInput input, Writer output) throws IOException {
+    boolean toKatakana(KanjiInput input, KanjiOutput output) {
         int ch = input.get();
         if (!isKatakana(ch)) {
             return false;
@@ -92,14 +88,10 @@ class KatakanaConverterImpl {
      * Returns whether the specified character is katakana.
      */
     private static boolean isKatakana(int ch) {
-        if (ch < 0) {
-            return false;
-        }
         if (ch == '\u309b' || ch == '\u309c') { // voice sound mark
             return true;
         }
-        Character.UnicodeBlock block = Character.UnicodeBlock.of((char)ch);
-        return block.equals(Character.UnicodeBlock.KATAKANA);
+        return CharClass.is(ch, CharClass.KATAKANA);
     }
 
 }
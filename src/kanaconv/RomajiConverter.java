@@ -0,0 +1,291 @@
+/*
+ * JapanMapTranslate
+ * Copyright (c) Florian Fischer, 2016 (florianfischer@gmx.de)
+ *
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ */
+
+package kanaconv;
+
+/**
+ * Converts hiragana and katakana to Hepburn romaji and normalizes the result,
+ * in a single scan over the text.
+ * <p>
+ * The result is the same as that of a Kakasi converting hiragana, followed by
+ * a Kakasi converting the katakana of its output, both in capitalize mode.
+ * The two conversions run interleaved: the katakana conversion reads the
+ * output of the hiragana conversion as soon as it is produced. Its output is
+ * normalized while it is written: a space is put between a lowercase letter
+ * or digit and an uppercase letter, a vowel followed by '^' is replaced by
+ * the vowel with macron, two spaces are reduced to one, and whitespace at the
+ * start and end is removed.
+ * <p>
+ * A RomajiConverter keeps the state of a conversion, and must not be used by
+ * several threads at once.
+ */
+public class RomajiConverter {
+
+    private final KanaToRomaConverterImpl.Table hiraganaTable;
+    private final KanaToRomaConverterImpl.Table katakanaTable;
+
+    // Input of the hiragana conversion
+    private CharSequence text;
+    private int index;
+    private int end;
+
+    // Output of the hiragana conversion, and the next character of it to be
+    // read by the katakana conversion
+    private final StringBuilder hiraganaOutput = new StringBuilder();
+    private int next;
+
+    // Normalized output
+    private StringBuilder output;
+    private int start;
+    private char previous;
+    private int spaces;
+
+    /**
+     * Constructs a RomajiConverter.
+     */
+    public RomajiConverter() {
+        hiraganaTable = KanaToRomaConverterImpl.getHiraganaTable(
+            KanaToRomaConverterImpl.HEPBURN);
+        katakanaTable = KanaToRomaConverterImpl.getKatakanaTable(
+            KanaToRomaConverterImpl.HEPBURN);
+    }
+
+    /**
+     * Converts the characters of text from start to end, and appends the
+     * result to output.
+     *
+     * @param text  the text.
+     * @param start  the index of the first character.
+     * @param end  the index after the last character.
+     * @param output  the output.
+     */
+    public void convert(CharSequence text, int start, int end,
+                        StringBuilder output) {
+        this.text = text;
+        this.index = start;
+        this.end = end;
+        hiraganaOutput.setLength(0);
+        next = 0;
+        this.output = output;
+        this.start = output.length();
+        previous = 0;
+        spaces = 0;
+        try {
+            convertKatakana();
+            finish();
+        } finally {
+            this.text = null;
+            this.output = null;
+        }
+    }
+
+    /**
+     * Runs one step of the hiragana conversion, as Kakasi does with the
+     * hiragana converter and the default converter.
+     *
+     * @return  false if the end of the input has been reached.
+     */
+    private boolean convertHiragana() {
+        if (index >= end) {
+            return false;
+        }
+        char ch = text.charAt(index);
+        if ((CharClass.of(ch) & CharClass.HIRAGANA) == 0) {
+            index = copyRun(text, index, end);
+            return true;
+        }
+        int node = hiraganaTable.match(text, index, end);
+        if (node == 0) {
+            // Not convertible: dropped
+            index++;
+            return true;
+        }
+        boolean first = true;
+        do {
+            writeRomaji(hiraganaTable.romaji(node), first);
+            index += hiraganaTable.length(node);
+            first = false;
+            node = hiraganaTable.match(text, index, end);
+        } while (node != 0);
+        return true;
+    }
+
+    /**
+     * Copies the characters from index, as long as they are japanese or not
+     * as the first one, to the output of the hiragana conversion.
+     *
+     * @return  the index after the copied characters.
+     */
+    private int copyRun(CharSequence text, int index, int end) {
+        boolean japanese = isJapanese(text.charAt(index));
+        do {
+            hiraganaOutput.append(text.charAt(index++));
+        } while (index < end && continuesJapanese(text.charAt(index)) == japanese);
+        return index;
+    }
+
+    private void writeRomaji(String romaji, boolean capitalize) {
+        if (capitalize) {
+            hiraganaOutput.append(Character.toUpperCase(romaji.charAt(0)));
+            hiraganaOutput.append(romaji, 1, romaji.length());
+        } else {
+            hiraganaOutput.append(romaji);
+        }
+    }
+
+    /**
+     * Makes the output of the hiragana conversion available up to the given
+     * length, if the input is long enough.
+     *
+     * @return  false if the output is shorter.
+     */
+    private boolean available(int length) {
+        while (hiraganaOutput.length() < length) {
+            if (!convertHiragana()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Runs the katakana conversion on the output of the hiragana conversion,
+     * as Kakasi does with the katakana converter and the default converter.
+     */
+    private void convertKatakana() {
+        int lookahead = katakanaTable.maxLength();
+        while (available(next + 1)) {
+            char ch = hiraganaOutput.charAt(next);
+            if ((CharClass.of(ch) & CharClass.KATAKANA) == 0) {
+                boolean japanese = isJapanese(ch);
+                do {
+                    put(ch);
+                    next++;
+                    if (!available(next + 1)) {
+                        break;
+                    }
+                    ch = hiraganaOutput.charAt(next);
+                } while (continuesJapanese(ch) == japanese);
+                continue;
+            }
+            available(next + lookahead);
+            int node = katakanaTable.match(hiraganaOutput, next,
+                                           hiraganaOutput.length());
+            if (node == 0) {
+                // Not convertible: dropped
+                next++;
+                continue;
+            }
+            boolean first = true;
+            do {
+                String romaji = katakanaTable.romaji(node);
+                for (int i = 0; i < romaji.length(); i++) {
+                    char c = romaji.charAt(i);
+                    put(first && i == 0 ? Character.toUpperCase(c) : c);
+                }
+                next += katakanaTable.length(node);
+                first = false;
+                available(next + lookahead);
+                node = katakanaTable.match(hiraganaOutput, next,
+                                           hiraganaOutput.length());
+            } while (node != 0);
+        }
+    }
+
+    private static boolean isJapanese(char ch) {
+        return (CharClass.of(ch) & (CharClass.KANJI | CharClass.HIRAGANA
+                                    | CharClass.KATAKANA)) != 0;
+    }
+
+    /**
+     * Returns whether a character is japanese when it follows another one,
+     * as in DefaultConverter.
+     */
+    private static boolean continuesJapanese(char ch) {
+        return (CharClass.of(ch) & (CharClass.KANJI | CharClass.HIRAGANA
+                                    | CharClass.KATAKANA
+                                    | CharClass.CONTINUES_JAPANESE)) != 0;
+    }
+
+    /**
+     * Writes a character of the katakana conversion output to the normalized
+     * output.
+     */
+    private void put(char ch) {
+        if (ch == ' ') {
+            spaces++;
+            previous = ch;
+            return;
+        }
+        if (spaces > 0) {
+            // Each two spaces are reduced to one; leading spaces are removed
+            if (output.length() > start) {
+                for (int i = (spaces + 1) / 2; i > 0; i--) {
+                    output.append(' ');
+                }
+            }
+            spaces = 0;
+        }
+        if (ch == '^') {
+            char macron = macron(previous);
+            if (macron != 0) {
+                output.setCharAt(output.length() - 1, macron);
+                previous = 0;
+                return;
+            }
+        }
+        if (((previous >= 'a' && previous <= 'z') || (previous >= '0' && previous <= '9'))
+            && ch >= 'A' && ch <= 'Z') {
+            // Space between words, but not within abbreviations
+            output.append(' ');
+        }
+        previous = ch;
+        if (ch <= ' ' && output.length() == start) {
+            return;
+        }
+        output.append(ch);
+    }
+
+    /**
+     * Removes the trailing whitespace of the normalized output.
+     */
+    private void finish() {
+        int length = output.length();
+        while (length > start && output.charAt(length - 1) <= ' ') {
+            length--;
+        }
+        output.setLength(length);
+    }
+
+    /**
+     * Returns the vowel with macron, or 0 if the character is no vowel.
+     */
+    private static char macron(char ch) {
+        switch (ch) {
+        case 'A': return '\u0100';
+        case 'E': return '\u0112';
+        case 'I': return '\u012a';
+        case 'O': return '\u014c';
+        case 'U': return '\u016a';
+        case 'a': return '\u0101';
+        case 'e': return '\u0113';
+        case 'i': return '\u012b';
+        case 'o': return '\u014d';
+        case 'u': return '\u016b';
+        default: return 0;
+        }
+    }
+
+}